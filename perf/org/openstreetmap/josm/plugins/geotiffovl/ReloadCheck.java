@@ -0,0 +1,146 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.data.projection.Mercator;
+
+/**
+ * Checks that a layer keeps working when reloading its file fails
+ * 
+ * Replaces the file of a layer with one GDAL cannot open, reloads, and checks
+ * that the layer still paints, samples and describes the old version. Then
+ * puts the file back, reloads again and checks the same. Needs GDAL and
+ * JOSM. Exits with status 1 if a check fails.
+ */
+public class ReloadCheck {
+
+	private static final int SIZE = 1024;
+
+	private final BufferedImage m_screen = new BufferedImage(SIZE / 2,
+			SIZE / 2, BufferedImage.TYPE_INT_RGB);
+	private final Graphics2D m_g = m_screen.createGraphics();
+	private int m_failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		ReplayHarness.initJosm();
+		if (!GDALBootstrap.ensure()) {
+			System.exit(2);
+		}
+		ReloadCheck check = new ReloadCheck();
+		check.run();
+		if (check.m_failures > 0) {
+			System.out.println(check.m_failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		File image = ReplayHarness.createSyntheticImage(SIZE);
+		File moved = new File(image.getPath() + ".moved");
+		moved.deleteOnExit();
+		Dataset ds = gdal.Open(image.getAbsolutePath(), gdalconst.GA_ReadOnly);
+		Main.proj = new Mercator();
+		GDALRasterLayer layer = new GDALRasterLayer(image.getName(), ds,
+				image);
+		try {
+			BoundingXYVisitor v = new BoundingXYVisitor();
+			layer.visitBoundingBox(v);
+			ProjectionBounds b = v.getBounds();
+			EastNorth center = new EastNorth(
+					(b.min.east() + b.max.east()) / 2,
+					(b.min.north() + b.max.north()) / 2);
+			TileViewport view = new TileViewport.Fixed(center, (b.max.east()
+					- b.min.east()) / m_screen.getWidth(), m_screen.getWidth(),
+					m_screen.getHeight());
+			checkLayer(layer, view, center, "before reloading");
+
+			// The old handle keeps reading the moved file
+			check(image.renameTo(moved), "could not move " + image);
+			OutputStream out = new FileOutputStream(image);
+			try {
+				out.write(new byte[] { 'n', 'o', 't', ' ', 'a', ' ', 't', 'i',
+						'f', 'f' });
+			} finally {
+				out.close();
+			}
+			layer.reloadSource(null);
+			checkLayer(layer, view, center, "after a failed reload");
+
+			check(image.delete() && moved.renameTo(image), "could not put "
+					+ image + " back");
+			layer.reloadSource(null);
+			checkLayer(layer, view, center, "after reloading again");
+		} finally {
+			layer.destroy();
+			image.delete();
+			moved.delete();
+		}
+	}
+
+	/**
+	 * Paints the view until it is complete, samples its center and builds
+	 * the layer info
+	 */
+	private void checkLayer(GDALRasterLayer layer, TileViewport view,
+			EastNorth center, String when) throws InterruptedException {
+		try {
+			check(layer.getBandCount() == 3, "band count "
+					+ layer.getBandCount() + " " + when);
+			long deadline = System.currentTimeMillis() + 30000;
+			TileLoader loader = layer.getTileLoader();
+			do {
+				layer.paint(m_g, view);
+				Thread.sleep(16);
+			} while (loader.getPendingCount() > 0
+					&& System.currentTimeMillis() < deadline);
+			check(loader.getPendingCount() == 0, "view not complete " + when);
+			List<EastNorth> points = Collections.singletonList(center);
+			double value = layer.sample(points, 1)[0];
+			check(!Double.isNaN(value), "no value at the center " + when);
+			check(layer.getInfoComponent() != null, "no layer info " + when);
+			System.out.println("Layer works " + when + ", value " + value);
+		} catch (RuntimeException e) {
+			e.printStackTrace(System.out);
+			check(false, e + " " + when);
+		}
+	}
+
+	private void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println("FAILED: " + message);
+			m_failures++;
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the byte accounting of {@link RemoteRaster} and
+ * {@link RangeCacheProxy} against a local stand-in for a web server
+ * 
+ * Replays a few views as lists of byte ranges, like GDAL reads them for the
+ * tiles of a view, and prints the bytes fetched from the server per view. It
+ * checks that the server sent exactly what the raster accounted for, that
+ * revisited views and restarts fetch nothing, that concurrent readers fetch
+ * every block once, that the cache stays within its size limit, and that
+ * the proxy refuses foreign hosts and unknown paths. Needs neither GDAL nor JOSM. Exits with status 1 if a check fails.
+ */
+public class RemoteCacheCheck {
+
+	private static final int FILE_SIZE = 4 * 1024 * 1024 + 1234;
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final long CACHE_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Views as offset and length of the reads of their tiles
+	 */
+	private static final long[][][] VIEWS = {
+			{ { 0, 16384 }, { 200000, 70000 }, { 300000, 4096 } },
+			{ { 1000000, 300000 }, { 1400000, 10 } },
+			{ { 200000, 70000 }, { 4000000, FILE_SIZE - 4000000 } } };
+
+	private final byte[] m_data = new byte[FILE_SIZE];
+	private final AtomicLong m_sentBytes = new AtomicLong();
+	/**
+	 * Send Content-Length for HEAD requests, or leave it out like a server
+	 * with chunked encoding
+	 */
+	private volatile boolean m_headLength = true;
+	private int m_failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		RemoteCacheCheck check = new RemoteCacheCheck();
+		check.run();
+		if (check.m_failures > 0) {
+			System.out.println(check.m_failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		new Random(42).nextBytes(m_data);
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getByName("127.0.0.1"), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/image.tif");
+		File cacheDir = File.createTempFile("geotiffovl-check", "");
+		cacheDir.delete();
+
+		try {
+			checkViews(url, cacheDir);
+			checkRestart(url, cacheDir);
+			checkConcurrent(new URL(url, "/concurrent.tif"), cacheDir);
+			checkProxy(new URL(url, "/proxied.tif"), cacheDir);
+			checkMissingLength(new URL(url, "/chunked.tif"), cacheDir);
+			checkEviction(url, new File(cacheDir, "small"));
+		} finally {
+			server.stop(0);
+			delete(cacheDir);
+		}
+	}
+
+	/**
+	 * Replays the views twice, the second time everything must be cached
+	 */
+	private void checkViews(URL url, File cacheDir) throws IOException {
+		RemoteRaster raster = RemoteRaster.open(url, cacheDir, BLOCK_SIZE, 2,
+				CACHE_SIZE);
+		try {
+			for (int pass = 1; pass <= 2; pass++) {
+				for (int v = 0; v < VIEWS.length; v++) {
+					long sentBefore = m_sentBytes.get();
+					long fetchedBefore = raster.getUpstreamBytes();
+					long requestsBefore = raster.getUpstreamRequests();
+					replay(raster, VIEWS[v]);
+					long sent = m_sentBytes.get() - sentBefore;
+					long fetched = raster.getUpstreamBytes() - fetchedBefore;
+					System.out.println("Pass " + pass + " view " + v + ": "
+							+ fetched + " bytes in "
+							+ (raster.getUpstreamRequests() - requestsBefore)
+							+ " requests");
+					check(sent == fetched, "view " + v + " accounted "
+							+ fetched + " bytes, server sent " + sent);
+					if (pass == 1) {
+						check(fetched <= viewBlocks(VIEWS[v]) * BLOCK_SIZE,
+								"view " + v + " fetched " + fetched
+										+ " bytes");
+					} else {
+						check(fetched == 0, "revisited view " + v
+								+ " fetched " + fetched + " bytes");
+					}
+				}
+			}
+		} finally {
+			raster.release();
+		}
+	}
+
+	/**
+	 * A new instance on the same cache fetches nothing for cached views
+	 */
+	private void checkRestart(URL url, File cacheDir) throws IOException {
+		RemoteRaster raster = RemoteRaster.open(url, cacheDir, BLOCK_SIZE, 2,
+				CACHE_SIZE);
+		try {
+			for (long[][] view : VIEWS) {
+				replay(raster, view);
+			}
+			check(raster.getUpstreamBytes() == 0, "after restart fetched "
+					+ raster.getUpstreamBytes() + " bytes");
+		} finally {
+			raster.release();
+		}
+	}
+
+	/**
+	 * Threads reading the same cold range fetch every block once
+	 */
+	private void checkConcurrent(URL url, File cacheDir) throws Exception {
+		final RemoteRaster raster = RemoteRaster.open(url, cacheDir,
+				BLOCK_SIZE, 2, CACHE_SIZE);
+		try {
+			final List<Throwable> errors = new ArrayList<Throwable>();
+			Thread[] threads = new Thread[8];
+			for (int t = 0; t < threads.length; t++) {
+				final int offset = t * 10000;
+				threads[t] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							read(raster, offset, 1024 * 1024);
+						} catch (Throwable e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			long blocks = (70000 + 1024 * 1024 - 1) / BLOCK_SIZE + 1;
+			System.out.println("Concurrent: " + raster.getUpstreamBytes()
+					+ " bytes in " + raster.getUpstreamRequests()
+					+ " requests");
+			check(errors.isEmpty(), "concurrent reads failed: " + errors);
+			check(raster.getUpstreamBytes() == blocks * BLOCK_SIZE,
+					"concurrent reads fetched " + raster.getUpstreamBytes()
+							+ " bytes for " + blocks + " blocks");
+		} finally {
+			raster.release();
+		}
+	}
+
+	/**
+	 * Reads through the proxy like GDAL does, and from where it must not
+	 */
+	private void checkProxy(URL url, File cacheDir) throws IOException {
+		RemoteRaster raster = RemoteRaster.open(url, cacheDir, BLOCK_SIZE, 2,
+				CACHE_SIZE);
+		RangeCacheProxy proxy = RangeCacheProxy.getInstance();
+		URL proxied = new URL(proxy.registerUrl(raster));
+		try {
+			HttpURLConnection conn = (HttpURLConnection) proxied
+					.openConnection();
+			conn.setRequestProperty("Range", "bytes=100000-100999");
+			check(conn.getResponseCode() == 206, "proxy answered "
+					+ conn.getResponseCode() + " to a range request");
+			byte[] body = readAll(conn.getInputStream());
+			check(Arrays.equals(body, Arrays.copyOfRange(m_data, 100000,
+					101000)), "proxy returned wrong bytes");
+
+			int status = rawStatus(proxied, "attacker.example:"
+					+ proxied.getPort());
+			check(status == 403, "proxy answered " + status
+					+ " to a foreign Host");
+			URL guessed = new URL(proxied, "/r/0/" + raster.getFileName());
+			conn = (HttpURLConnection) guessed.openConnection();
+			check(conn.getResponseCode() == 404, "proxy answered "
+					+ conn.getResponseCode() + " to a guessed path");
+		} finally {
+			proxy.unregister(raster);
+		}
+	}
+
+	/**
+	 * Without Content-Length the size comes from a one byte range request
+	 */
+	private void checkMissingLength(URL url, File cacheDir)
+			throws IOException {
+		m_headLength = false;
+		try {
+			RemoteRaster raster = RemoteRaster.open(url, cacheDir,
+					BLOCK_SIZE, 2, CACHE_SIZE);
+			check(raster.getLength() == FILE_SIZE, "probed length "
+					+ raster.getLength());
+			raster.release();
+		} finally {
+			m_headLength = true;
+		}
+	}
+
+	/**
+	 * Reading more than the size limit evicts the least recently used
+	 * blocks, and opening another file removes the caches of closed ones
+	 */
+	private void checkEviction(URL url, File cacheDir) throws IOException {
+		long limit = 64L * BLOCK_SIZE;
+		RemoteRaster raster = RemoteRaster.open(url, cacheDir, BLOCK_SIZE, 2,
+				limit);
+		try {
+			for (int pos = 0; pos < FILE_SIZE; pos += 256 * 1024) {
+				read(raster, pos, Math.min(256 * 1024, FILE_SIZE - pos));
+			}
+			System.out.println("Eviction: " + raster.getCachedBytes()
+					+ " bytes cached of " + FILE_SIZE);
+			check(raster.getCachedBytes() <= limit, "cache holds "
+					+ raster.getCachedBytes() + " bytes, limit " + limit);
+			long before = raster.getUpstreamBytes();
+			read(raster, 0, 1024);
+			check(raster.getUpstreamBytes() > before,
+					"evicted block was not fetched again");
+		} finally {
+			raster.release();
+		}
+
+		URL other = new URL(url, "/other.tif");
+		raster = RemoteRaster.open(other, cacheDir, BLOCK_SIZE, 2, 1024);
+		try {
+			File[] dirs = cacheDir.listFiles();
+			check(dirs != null && dirs.length == 1, "caches of closed files "
+					+ "were kept: " + Arrays.toString(dirs));
+		} finally {
+			raster.release();
+		}
+	}
+
+	private void replay(RemoteRaster raster, long[][] view)
+			throws IOException {
+		for (long[] read : view) {
+			read(raster, read[0], (int) read[1]);
+		}
+	}
+
+	private void read(RemoteRaster raster, long pos, int len)
+			throws IOException {
+		byte[] buf = new byte[len];
+		raster.read(pos, buf, 0, len);
+		check(Arrays.equals(buf, Arrays.copyOfRange(m_data, (int) pos,
+				(int) pos + len)), "wrong bytes at " + pos);
+	}
+
+	/**
+	 * @return Upper bound of the blocks a view fetches, including gaps
+	 *         fetched over
+	 */
+	private static long viewBlocks(long[][] view) {
+		long first = Long.MAX_VALUE, last = 0;
+		for (long[] read : view) {
+			first = Math.min(first, read[0] / BLOCK_SIZE);
+			last = Math.max(last, (read[0] + read[1] - 1) / BLOCK_SIZE);
+		}
+		return last - first + 1;
+	}
+
+	/**
+	 * Sends a GET with the given Host header, which HttpURLConnection does
+	 * not allow to set
+	 */
+	private static int rawStatus(URL url, String host) throws IOException {
+		Socket socket = new Socket(url.getHost(), url.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + url.getPath() + " HTTP/1.1\r\nHost: " + host
+					+ "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			out.flush();
+			String response = new String(readAll(socket.getInputStream()),
+					"US-ASCII");
+			return Integer.parseInt(response.split(" ")[1]);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.getResponseHeaders().set("ETag", "\"check\"");
+			if (m_headLength) {
+				exchange.getResponseHeaders().set("Content-Length",
+						Integer.toString(FILE_SIZE));
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				// Like a chunked response, no length known up front
+				exchange.sendResponseHeaders(200, -1);
+			}
+			return;
+		}
+		List<long[]> ranges = RangeCacheProxy.parseRanges(exchange
+				.getRequestHeaders().getFirst("Range"), FILE_SIZE);
+		if (ranges == null || ranges.size() != 1) {
+			exchange.sendResponseHeaders(416, -1);
+			return;
+		}
+		long[] r = ranges.get(0);
+		int len = (int) (r[1] - r[0] + 1);
+		exchange.getResponseHeaders().set("Content-Range",
+				"bytes " + r[0] + "-" + r[1] + "/" + FILE_SIZE);
+		// Counted first, the client may be done before this thread goes on
+		m_sentBytes.addAndGet(len);
+		exchange.sendResponseHeaders(206, len);
+		OutputStream out = exchange.getResponseBody();
+		out.write(m_data, (int) r[0], len);
+		out.close();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			byte[] buf = new byte[8192];
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				bytes.write(buf, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println("FAILED: " + message);
+			m_failures++;
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
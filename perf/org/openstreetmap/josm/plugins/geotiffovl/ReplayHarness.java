@@ -0,0 +1,448 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Driver;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+import org.gdal.osr.SpatialReference;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.Preferences;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.data.projection.Projection;
+
+/**
+ * End-to-end performance test: replays a scripted sequence of projection
+ * changes, zooms and pans, painting a {@link GDALRasterLayer} into an
+ * offscreen image like the map view would
+ * 
+ * Records the paint latency of every frame, the time until all visible tiles
+ * of a view are loaded, the peak Java heap, the peak resident set size and
+ * the peak GDAL block cache. The results are compared against a limits
+ * file; the process exits with status 1 if the 95th percentile frame time,
+ * the settle time percentiles or the peak memory exceed their limit by more
+ * than the tolerance, or if there is no limits file and perf.update is not
+ * set. Unless the limits were measured with perf.update, they are only
+ * ceilings and do not catch small regressions.
+ * 
+ * Runs headless. Configured by system properties:
+ * <ul>
+ * <li>perf.limits: limits file (default perf/limits.properties)</li>
+ * <li>perf.update: "true" to overwrite the limits with the results</li>
+ * <li>perf.images: further GeoTiffs to replay, separated by the path separator
+ * </li>
+ * <li>perf.projections: projection classes to cycle through, comma separated
+ * </li>
+ * <li>perf.synthetic.size: edge length of the synthetic GeoTiff (default 8192)
+ * </li>
+ * <li>perf.overviews: "true" to let layers build missing overviews during
+ * the replay (default false)</li>
+ * <li>perf.watch: "true" to let layers watch their file for changes
+ * (default false)</li>
+ * </ul>
+ */
+public class ReplayHarness {
+
+	private static final int VIEW_WIDTH = 1280;
+	private static final int VIEW_HEIGHT = 800;
+	private static final long FRAME_INTERVAL_MS = 16;
+	private static final long SETTLE_TIMEOUT_MS = 30000;
+	/**
+	 * Headroom over measured limits for the noise between runs
+	 */
+	private static final double DEFAULT_TOLERANCE = 0.15;
+
+	private final List<Long> m_frameNanos = new ArrayList<Long>();
+	private final List<Long> m_settleNanos = new ArrayList<Long>();
+	private long m_peakHeap = 0;
+	private long m_peakGdalCache = 0;
+
+	private final BufferedImage m_screen = new BufferedImage(VIEW_WIDTH,
+			VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private final Graphics2D m_g = m_screen.createGraphics();
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		initJosm();
+		if (!GDALBootstrap.ensure()) {
+			System.exit(2);
+		}
+
+		List<File> images = new ArrayList<File>();
+		images.add(createSyntheticImage(Integer.getInteger(
+				"perf.synthetic.size", 8192)));
+		String extra = System.getProperty("perf.images", "");
+		for (String path : extra.split(File.pathSeparator)) {
+			if (path.length() > 0) {
+				images.add(new File(path));
+			}
+		}
+
+		List<Projection> projections = new ArrayList<Projection>();
+		for (String cls : System.getProperty(
+				"perf.projections",
+				"org.openstreetmap.josm.data.projection.Mercator,"
+						+ "org.openstreetmap.josm.data.projection.Epsg4326")
+				.split(",")) {
+			projections.add((Projection) Class.forName(cls.trim())
+					.newInstance());
+		}
+
+		ReplayHarness harness = new ReplayHarness();
+		for (File image : images) {
+			harness.replay(image, projections);
+		}
+
+		Properties results = harness.getResults();
+		System.out.println("Replay results:");
+		for (String key : new String[] { "frames", "frame.p50.ms",
+				"frame.p95.ms", "frame.p99.ms", "settle.p50.ms",
+				"settle.p95.ms", "heap.peak.mb", "rss.peak.mb",
+				"gdal.cache.peak.mb" }) {
+			System.out.println("  " + key + " = " + results.getProperty(key));
+		}
+
+		File limitsFile = new File(System.getProperty("perf.limits",
+				"perf/limits.properties"));
+		if (Boolean.getBoolean("perf.update")) {
+			store(results, limitsFile);
+			System.out.println("Measured limits written to " + limitsFile);
+			System.exit(0);
+		}
+		if (!limitsFile.isFile()) {
+			System.out.println("No limits " + limitsFile
+					+ ", write them with -Dperf.update=true");
+			System.exit(1);
+		}
+
+		Properties limits = load(limitsFile);
+		String measuredOn = limits.getProperty("measured.on");
+		if (measuredOn == null) {
+			System.out.println("Limits are hand-set ceilings, not "
+					+ "measurements; only gross regressions fail");
+		} else if (!measuredOn.equals(describeMachine())) {
+			System.out.println("Limits were measured on " + measuredOn
+					+ ", not on this machine");
+		}
+		List<String> regressions = compare(limits, results);
+		for (String r : regressions) {
+			System.out.println("REGRESSION: " + r);
+		}
+		System.exit(regressions.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * Replays the script for one image in every projection
+	 */
+	public void replay(File image, List<Projection> projections)
+			throws InterruptedException {
+		System.out.println("Replaying " + image);
+		Dataset ds = gdal.Open(image.getAbsolutePath(), gdalconst.GA_ReadOnly);
+		if (ds == null) {
+			throw new IllegalArgumentException("Cannot open " + image + ": "
+					+ gdal.GetLastErrorMsg());
+		}
+
+		GDALRasterLayer layer = null;
+		for (Projection proj : projections) {
+			Main.proj = proj;
+			if (layer == null) {
+				layer = new GDALRasterLayer(image.getName(), ds, image);
+			}
+
+			// Start with the whole image in view
+			BoundingXYVisitor v = new BoundingXYVisitor();
+			layer.visitBoundingBox(v);
+			ProjectionBounds b = v.getBounds();
+			EastNorth center = new EastNorth((b.min.east() + b.max.east()) / 2,
+					(b.min.north() + b.max.north()) / 2);
+			double scale = Math.max((b.max.east() - b.min.east())
+					/ VIEW_WIDTH, (b.max.north() - b.min.north())
+					/ VIEW_HEIGHT);
+
+			// Projection change and initial view
+			frames(layer, center, scale, 0, 0, 1.0, 30);
+
+			// Zoom in 6 levels, 10 frames per level. Each sequence starts
+			// where the last frame of the previous one was.
+			double zoomStep = Math.pow(0.5, 0.1);
+			frames(layer, center, scale, 0, 0, zoomStep, 61);
+			scale *= Math.pow(zoomStep, 60);
+
+			// Pan east, then south, a fortieth of the view per frame
+			double panStep = VIEW_WIDTH * scale / 40;
+			frames(layer, center, scale, panStep, 0, 1.0, 121);
+			center = new EastNorth(center.east() + 120 * panStep, center
+					.north());
+			frames(layer, center, scale, 0, -panStep, 1.0, 61);
+			center = new EastNorth(center.east(), center.north() - 60
+					* panStep);
+
+			// And zoom out again
+			frames(layer, center, scale, 0, 0, 1 / zoomStep, 61);
+		}
+
+		layer.destroy();
+	}
+
+	/**
+	 * Paints a sequence of frames, moving and scaling the view between them,
+	 * then waits until all tiles of the final view are loaded
+	 */
+	private void frames(GDALRasterLayer layer, EastNorth center, double scale,
+			double dEast, double dNorth, double zoom, int count)
+			throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			EastNorth c = new EastNorth(center.east() + i * dEast, center
+					.north()
+					+ i * dNorth);
+			TileViewport view = new TileViewport.Fixed(c, scale
+					* Math.pow(zoom, i), VIEW_WIDTH, VIEW_HEIGHT);
+			paintFrame(layer, view);
+			Thread.sleep(FRAME_INTERVAL_MS);
+		}
+
+		// Keep painting until the view is complete
+		TileViewport last = new TileViewport.Fixed(new EastNorth(center.east()
+				+ (count - 1) * dEast, center.north() + (count - 1) * dNorth),
+				scale * Math.pow(zoom, count - 1), VIEW_WIDTH, VIEW_HEIGHT);
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+		TileLoader loader = layer.getTileLoader();
+		while (System.currentTimeMillis() < deadline) {
+			paintFrame(layer, last);
+			if (loader.getPendingCount() == 0) {
+				break;
+			}
+			Thread.sleep(FRAME_INTERVAL_MS);
+		}
+		m_settleNanos.add(System.nanoTime() - start);
+	}
+
+	private void paintFrame(GDALRasterLayer layer, TileViewport view) {
+		m_g.setColor(Color.BLACK);
+		m_g.fillRect(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+
+		long start = System.nanoTime();
+		layer.paint(m_g, view);
+		m_frameNanos.add(System.nanoTime() - start);
+
+		m_peakHeap = Math.max(m_peakHeap, ManagementFactory.getMemoryMXBean()
+				.getHeapMemoryUsage().getUsed());
+		m_peakGdalCache = Math.max(m_peakGdalCache, GDALTuning
+				.getCacheUsed());
+	}
+
+	public Properties getResults() {
+		Properties p = new Properties();
+		p.setProperty("frames", Integer.toString(m_frameNanos.size()));
+		p.setProperty("frame.p50.ms", millis(percentile(m_frameNanos, 50)));
+		p.setProperty("frame.p95.ms", millis(percentile(m_frameNanos, 95)));
+		p.setProperty("frame.p99.ms", millis(percentile(m_frameNanos, 99)));
+		p.setProperty("settle.p50.ms", millis(percentile(m_settleNanos, 50)));
+		p.setProperty("settle.p95.ms", millis(percentile(m_settleNanos, 95)));
+		p.setProperty("heap.peak.mb", megabytes(m_peakHeap));
+		p.setProperty("rss.peak.mb", megabytes(getPeakRss()));
+		p.setProperty("gdal.cache.peak.mb", megabytes(m_peakGdalCache));
+		return p;
+	}
+
+	/**
+	 * Checks the gated metrics against the limits
+	 * 
+	 * @return Descriptions of the regressions, empty if there are none
+	 */
+	static List<String> compare(Properties limits, Properties results) {
+		double tolerance = Double.parseDouble(limits.getProperty(
+				"tolerance", Double.toString(DEFAULT_TOLERANCE)));
+		List<String> regressions = new ArrayList<String>();
+		for (String key : new String[] { "frame.p95.ms", "settle.p50.ms",
+				"settle.p95.ms", "heap.peak.mb", "rss.peak.mb" }) {
+			String base = limits.getProperty(key);
+			String value = results.getProperty(key);
+			if (base == null || value == null) {
+				continue;
+			}
+			double limit = Double.parseDouble(base) * (1 + tolerance);
+			if (Double.parseDouble(value) > limit) {
+				regressions.add(key + " is " + value + ", limit " + base
+						+ ", with tolerance " + String.format("%.1f", limit));
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Creates a tiled, compressed RGB GeoTiff without overviews in Web
+	 * Mercator, showing gradients and a grid
+	 */
+	static File createSyntheticImage(int size) throws IOException {
+		File file = File.createTempFile("geotiffovl-replay", ".tif");
+		file.deleteOnExit();
+
+		Driver driver = gdal.GetDriverByName("GTiff");
+		Dataset ds = driver.Create(file.getAbsolutePath(), size, size, 3,
+				gdalconst.GDT_Byte, new String[] { "TILED=YES",
+						"COMPRESS=DEFLATE" });
+		// 0.5 m pixels somewhere in Central Europe
+		ds.SetGeoTransform(new double[] { 1000000, 0.5, 0, 6500000, 0, -0.5 });
+		SpatialReference sr = new SpatialReference();
+		sr.ImportFromEPSG(3857);
+		ds.SetProjection(sr.ExportToWkt());
+
+		int rows = 256;
+		byte[] buf = new byte[size * rows * 3];
+		int[] bands = new int[] { 1, 2, 3 };
+		for (int y0 = 0; y0 < size; y0 += rows) {
+			int h = Math.min(rows, size - y0);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < size; x++) {
+					int i = y * size + x;
+					boolean grid = ((x & 255) == 0) || (((y0 + y) & 255) == 0);
+					buf[i] = (byte) (grid ? 255 : x * 255 / size);
+					buf[size * h + i] = (byte) (grid ? 255 : (y0 + y) * 255
+							/ size);
+					buf[2 * size * h + i] = (byte) ((x ^ (y0 + y)) & 0xff);
+				}
+			}
+			ds.WriteRaster(0, y0, size, h, size, h, gdalconst.GDT_Byte, buf,
+					bands);
+		}
+		ds.FlushCache();
+		ds.delete();
+		return file;
+	}
+
+	/**
+	 * Sets up the parts of JOSM the layer depends on
+	 */
+	static void initJosm() throws Exception {
+		Field pref = Main.class.getField("pref");
+		if (pref.get(null) == null) {
+			pref.set(null, new Preferences());
+		}
+		// Overviews built in the middle of a replay would skew the results
+		Main.pref.put("geotiffovl.overviews.build", Boolean.toString(Boolean
+				.getBoolean("perf.overviews")));
+		// The replay does not change the image, watching only adds a thread
+		Main.pref.put("geotiffovl.watch", Boolean.toString(Boolean
+				.getBoolean("perf.watch")));
+	}
+
+	/**
+	 * @return Peak resident set size from /proc, or 0 if unavailable
+	 */
+	private static long getPeakRss() {
+		File status = new File("/proc/self/status");
+		if (!status.isFile()) {
+			return 0;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(status));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("VmHWM:")) {
+						String kb = line.substring(6).trim().split("\\s+")[0];
+						return Long.parseLong(kb) * 1024;
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Fall through
+		}
+		return 0;
+	}
+
+	private static long percentile(List<Long> values, int p) {
+		if (values.isEmpty()) {
+			return 0;
+		}
+		List<Long> sorted = new ArrayList<Long>(values);
+		Collections.sort(sorted);
+		int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f", nanos / 1e6);
+	}
+
+	private static String megabytes(long bytes) {
+		return String.format("%.1f", bytes / (1024.0 * 1024.0));
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		return p;
+	}
+
+	/**
+	 * @return Operating system, processors and Java version, which the
+	 *         measured limits hold for
+	 */
+	static String describeMachine() {
+		return System.getProperty("os.name") + " "
+				+ System.getProperty("os.arch") + ", "
+				+ Runtime.getRuntime().availableProcessors() + " CPUs, Java "
+				+ System.getProperty("java.version");
+	}
+
+	private static void store(Properties results, File file)
+			throws IOException {
+		Properties p = new Properties();
+		p.putAll(results);
+		p.setProperty("tolerance", Double.toString(DEFAULT_TOLERANCE));
+		p.setProperty("measured.on", describeMachine());
+		OutputStream out = new FileOutputStream(file);
+		try {
+			p.store(out, "Measured limits for ant perf, update with "
+					+ "-Dperf.update=true");
+		} finally {
+			out.close();
+		}
+	}
+}
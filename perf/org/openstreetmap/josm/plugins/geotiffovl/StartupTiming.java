@@ -0,0 +1,74 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.lang.reflect.Field;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.Preferences;
+
+/**
+ * Measures what loading GDAL costs JOSM's startup, before and after it was
+ * moved out of the plugin constructor
+ * 
+ * Before, the constructor tuned GDAL and registered all drivers, which is
+ * what {@link GDALBootstrap#ensure()} does now on first use. After, the
+ * constructor only calls {@link GDALBootstrap#prewarm()}. Both are timed in a
+ * fresh JVM, so the native libraries are loaded by the measurement itself.
+ * 
+ * Configured by system properties:
+ * <ul>
+ * <li>perf.prewarm: "true" to time the constructor with prewarming enabled
+ * (default false, as in the plugin)</li>
+ * <li>perf.gdal.skip: drivers to skip, as geotiffovl.gdal.skip</li>
+ * </ul>
+ */
+public class StartupTiming {
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		Field pref = Main.class.getField("pref");
+		if (pref.get(null) == null) {
+			pref.set(null, new Preferences());
+		}
+		Main.pref.put("geotiffovl.gdal.prewarm", Boolean.toString(Boolean
+				.getBoolean("perf.prewarm")));
+		Main.pref.put("geotiffovl.gdal.skip", System.getProperty(
+				"perf.gdal.skip", ""));
+
+		// What the plugin constructor does now
+		long start = System.nanoTime();
+		GDALBootstrap.prewarm();
+		long after = System.nanoTime() - start;
+
+		// What it did before, i.e. what first use costs now. With
+		// prewarming, this waits for the background thread.
+		start = System.nanoTime();
+		if (!GDALBootstrap.ensure()) {
+			System.exit(2);
+		}
+		long before = System.nanoTime() - start;
+
+		System.out.println("Startup cost of GDAL in the plugin constructor:");
+		System.out.println(String.format("  before = %.1f ms (load and "
+				+ "register %d drivers)", before / 1e6, GDALBootstrap
+				.getDriverCount()));
+		System.out.println(String.format("  after  = %.1f ms (prewarm %s)",
+				after / 1e6, Boolean.getBoolean("perf.prewarm") ? "started"
+						: "disabled"));
+	}
+}
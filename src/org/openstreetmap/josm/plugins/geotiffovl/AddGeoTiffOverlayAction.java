@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileFilter;
 
 import org.gdal.gdal.Dataset;
@@ -109,6 +110,13 @@ public class AddGeoTiffOverlayAction extends JosmAction {
 	@Override
 	public void actionPerformed(ActionEvent arg0) {
 
+		if (!GDALBootstrap.ensure()) {
+			JOptionPane.showMessageDialog(Main.parent, tr(
+					"GDAL could not be loaded:\n{0}", GDALBootstrap.getError()),
+					tr("Add GeoTiff overlay"), JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+
 		String lastOpenDir = Main.pref.get("geotiffovl.lastopendir", "");
 		JFileChooser fc = new JFileChooser(lastOpenDir);
 
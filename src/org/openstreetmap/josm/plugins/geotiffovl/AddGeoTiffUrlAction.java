@@ -0,0 +1,164 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.actions.JosmAction;
+
+/**
+ * Opens a GeoTiff, preferably a Cloud-Optimized one, from a web server
+ * 
+ * Only the blocks needed for display are fetched, through the local
+ * {@link RangeCacheProxy}.
+ */
+public class AddGeoTiffUrlAction extends JosmAction {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	/**
+	 * Needed for serialization
+	 */
+	private static final long serialVersionUID = 2381565387710283694L;
+
+	public AddGeoTiffUrlAction() {
+		super(tr("Add GeoTiff overlay from URL"), null, null, null, false);
+	}
+
+	@Override
+	public void actionPerformed(ActionEvent arg0) {
+
+		if (!GDALBootstrap.ensure()) {
+			showError(tr("GDAL could not be loaded:\n{0}", GDALBootstrap
+					.getError()));
+			return;
+		}
+
+		String lastUrl = Main.pref.get("geotiffovl.lasturl", "");
+		Object input = JOptionPane.showInputDialog(Main.parent,
+				tr("URL of the GeoTiff:"), tr("Add GeoTiff overlay from URL"),
+				JOptionPane.QUESTION_MESSAGE, null, null, lastUrl);
+		if (input == null || input.toString().trim().length() == 0) {
+			// dialog cancelled by user
+			return;
+		}
+		String location = input.toString().trim();
+
+		// Remember URL
+		Main.pref.put("geotiffovl.lasturl", location);
+
+		URL url;
+		try {
+			url = new URL(location);
+		} catch (MalformedURLException e) {
+			showError(tr("Not a valid URL: {0}", location));
+			return;
+		}
+
+		final File cacheDir = new File(Main.pref.get(
+				"geotiffovl.http.cachedir", new File(Main.pref
+						.getPreferencesDirFile(), "cache/geotiffovl")
+						.getPath()));
+		final int blockSize = Main.pref.getInteger(
+				"geotiffovl.http.blocksize.kb", 64) * 1024;
+		final int maxGap = Main.pref.getInteger("geotiffovl.http.maxgap", 2);
+		final long maxCache = Main.pref.getInteger("geotiffovl.http.cache.mb",
+				1024) * 1024L * 1024L;
+		final URL remoteUrl = url;
+		final String remoteLocation = location;
+
+		// Talking to the server may take a while, keep the UI responsive
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				open(remoteUrl, remoteLocation, cacheDir, blockSize, maxGap,
+						maxCache);
+			}
+		}, "geotiffovl-open-url");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Opens the remote file on a background thread and adds the layer on the
+	 * event dispatch thread
+	 */
+	private void open(URL url, String location, File cacheDir,
+			int blockSize, int maxGap, long maxCache) {
+		final RemoteRaster raster;
+		RangeCacheProxy proxy;
+		try {
+			// Start the proxy first, the raster must be released once open
+			proxy = RangeCacheProxy.getInstance();
+			raster = RemoteRaster.open(url, cacheDir, blockSize, maxGap,
+					maxCache);
+		} catch (IOException e) {
+			showError(tr("Could not access {0}:\n{1}", location, e
+					.getMessage()));
+			return;
+		}
+
+		// Open GeoTiff through the caching proxy
+		final Dataset ds = gdal.Open(proxy.register(raster));
+		if (ds == null) {
+			proxy.unregister(raster);
+			showError(tr("GDAL could not open {0}:\n{1}", location, gdal
+					.GetLastErrorMsg()));
+			return;
+		}
+
+		// add new layer
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				GDALRasterLayer layer = new GDALRasterLayer(raster
+						.getFileName(), ds, raster);
+				Main.main.addLayer(layer);
+			}
+		});
+	}
+
+	/**
+	 * Shows an error message, from any thread
+	 */
+	private void showError(final String message) {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					showError(message);
+				}
+			});
+			return;
+		}
+		JOptionPane.showMessageDialog(Main.parent, message, tr("Error"),
+				JOptionPane.ERROR_MESSAGE);
+	}
+}
@@ -0,0 +1,183 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Computes new bands from the current ones
+ * 
+ * Every output band is either a weighted sum of bands, e.g. "4" or
+ * "0.5*3+0.5*2", or a normalised difference "nd(4,3)", i.e. (b4 - b3) / (b4 +
+ * b3) as used for NDVI. Band numbers start at 1.
+ */
+public class BandCombinationStage implements TileStage {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	private static final Pattern ND = Pattern
+			.compile("nd\\(\\s*(\\d+)\\s*,\\s*(\\d+)\\s*\\)");
+	private static final Pattern TERM = Pattern
+			.compile("([+-])?\\s*(?:(\\d+(?:\\.\\d*)?|\\.\\d+)\\s*\\*\\s*)?(\\d+)\\s*");
+
+	/**
+	 * Per output band the 0-based input bands
+	 */
+	private final int[][] m_bands;
+	/**
+	 * Per output band the weights of the input bands, null for a normalised
+	 * difference
+	 */
+	private final double[][] m_weights;
+
+	/**
+	 * @param expressions
+	 *            One expression per output band, see class description
+	 * @throws IllegalArgumentException
+	 *             If an expression cannot be parsed
+	 */
+	public BandCombinationStage(String[] expressions) {
+		m_bands = new int[expressions.length][];
+		m_weights = new double[expressions.length][];
+		for (int i = 0; i < expressions.length; i++) {
+			String expr = expressions[i].trim();
+			Matcher nd = ND.matcher(expr);
+			if (nd.matches()) {
+				m_bands[i] = new int[] { Integer.parseInt(nd.group(1)) - 1,
+						Integer.parseInt(nd.group(2)) - 1 };
+				continue;
+			}
+			List<Integer> bands = new ArrayList<Integer>();
+			List<Double> weights = new ArrayList<Double>();
+			Matcher term = TERM.matcher(expr);
+			int pos = 0;
+			while (pos < expr.length() && term.find(pos) && term.start() == pos
+					&& (pos == 0 || term.group(1) != null)) {
+				double w = term.group(2) != null ? Double.parseDouble(term
+						.group(2)) : 1.0;
+				weights.add("-".equals(term.group(1)) ? -w : w);
+				bands.add(Integer.parseInt(term.group(3)) - 1);
+				pos = term.end();
+			}
+			if (pos != expr.length() || bands.isEmpty()) {
+				throw new IllegalArgumentException(tr(
+						"Cannot read band expression ''{0}''", expr));
+			}
+			m_bands[i] = new int[bands.size()];
+			m_weights[i] = new double[bands.size()];
+			for (int j = 0; j < bands.size(); j++) {
+				m_bands[i][j] = bands.get(j);
+				m_weights[i][j] = weights.get(j);
+			}
+		}
+	}
+
+	public int getHalo() {
+		return 0;
+	}
+
+	public int getBandCount(int bands, boolean raw) {
+		for (int[] used : m_bands) {
+			for (int b : used) {
+				if (b < 0 || b >= bands) {
+					throw new IllegalArgumentException(tr(
+							"There is no band {0}, only {1}", b + 1, bands));
+				}
+			}
+		}
+		return m_bands.length;
+	}
+
+	public void markRawBands(boolean[] used, boolean raw) {
+		if (raw) {
+			for (int[] bands : m_bands) {
+				for (int b : bands) {
+					used[b] = true;
+				}
+			}
+		}
+	}
+
+	public void apply(TileData tile) {
+		final float[][] src = tile.getBands();
+
+		int count = m_bands.length;
+		final float[][] dst = new float[count][];
+		double[] min = new double[count];
+		double[] max = new double[count];
+		double[] mean = new double[count];
+		double[] sd = new double[count];
+		for (int i = 0; i < count; i++) {
+			dst[i] = new float[src[0].length];
+			if (m_weights[i] == null) {
+				min[i] = -1;
+				max[i] = 1;
+				mean[i] = sd[i] = Double.NaN;
+				continue;
+			}
+			mean[i] = 0;
+			for (int j = 0; j < m_bands[i].length; j++) {
+				int b = m_bands[i][j];
+				double w = m_weights[i][j];
+				min[i] += w * (w > 0 ? tile.getMin(b) : tile.getMax(b));
+				max[i] += w * (w > 0 ? tile.getMax(b) : tile.getMin(b));
+				mean[i] += w * tile.getMean(b);
+			}
+			// Only known for a single band, as bands are correlated
+			sd[i] = m_bands[i].length == 1 ? Math.abs(m_weights[i][0])
+					* tile.getStdDev(m_bands[i][0]) : Double.NaN;
+		}
+
+		final int width = tile.getWidth();
+		ParallelRows.run(width, tile.getHeight(), new ParallelRows.Body() {
+			public void run(int y0, int y1) {
+				int from = y0 * width;
+				int to = y1 * width;
+				for (int i = 0; i < dst.length; i++) {
+					float[] d = dst[i];
+					int[] bands = m_bands[i];
+					if (m_weights[i] == null) {
+						float[] a = src[bands[0]];
+						float[] b = src[bands[1]];
+						for (int p = from; p < to; p++) {
+							float sum = a[p] + b[p];
+							d[p] = sum != 0f ? (a[p] - b[p]) / sum : 0f;
+						}
+						continue;
+					}
+					for (int j = 0; j < bands.length; j++) {
+						float[] s = src[bands[j]];
+						float w = (float) m_weights[i][j];
+						for (int p = from; p < to; p++) {
+							d[p] += w * s[p];
+						}
+					}
+				}
+			}
+		});
+		tile.setBands(dst, min, max, mean, sd);
+	}
+}
@@ -0,0 +1,137 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+
+import javax.swing.AbstractAction;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import org.openstreetmap.josm.Main;
+
+/**
+ * Lets the user choose the bands a layer shows, e.g. 4,3,2 for a false colour
+ * composite. Only these bands are read and warped.
+ */
+public class BandsAction extends AbstractAction {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	/**
+	 * Needed for serialization
+	 */
+	private static final long serialVersionUID = 2873410529318641806L;
+
+	private final GDALRasterLayer m_layer;
+
+	public BandsAction(GDALRasterLayer layer) {
+		super(tr("Bands..."));
+		m_layer = layer;
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		int[] current = m_layer.getBands();
+		JTextField spec = new JTextField(current != null ? format(current)
+				: "", 20);
+		JLabel help = new JLabel(tr("<html>Bands to show, of {0}, separated by '','':<br>"
+				+ "one for grey, two for grey and alpha,<br>"
+				+ "three for red, green and blue, four for RGB and alpha.<br>"
+				+ "Empty to pick them automatically.</html>", m_layer
+				.getBandCount()));
+		JPanel panel = new JPanel(new BorderLayout(0, 8));
+		panel.add(help, BorderLayout.CENTER);
+		panel.add(spec, BorderLayout.SOUTH);
+
+		while (true) {
+			if (JOptionPane.showConfirmDialog(Main.parent, panel,
+					tr("Bands"), JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+				return;
+			}
+			try {
+				int[] bands = parse(spec.getText(), m_layer.getBandCount());
+				TilePipeline pipeline = m_layer.getPipeline();
+				if (pipeline != null) {
+					pipeline.check(bands != null ? bands.length : m_layer
+							.getBandCount());
+				}
+				m_layer.setBands(bands);
+				break;
+			} catch (IllegalArgumentException ex) {
+				JOptionPane.showMessageDialog(Main.parent, ex.getMessage(),
+						tr("Bands"), JOptionPane.ERROR_MESSAGE);
+			}
+		}
+		if (Main.map != null && Main.map.mapView != null) {
+			Main.map.mapView.repaint();
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of bands
+	 * 
+	 * @param count
+	 *            Number of bands of the raster
+	 * @return The bands, 1-based, or null if the list is empty
+	 * @throws IllegalArgumentException
+	 *             With a message for the user if the list is invalid
+	 */
+	public static int[] parse(String spec, int count) {
+		if (spec.trim().length() == 0) {
+			return null;
+		}
+		String[] parts = spec.split(",");
+		if (parts.length > 4) {
+			throw new IllegalArgumentException(tr(
+					"At most four bands can be shown, not {0}", parts.length));
+		}
+		int[] bands = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			try {
+				bands[i] = Integer.parseInt(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(tr(
+						"Invalid band ''{0}''", parts[i].trim()));
+			}
+			if (bands[i] < 1 || bands[i] > count) {
+				throw new IllegalArgumentException(tr(
+						"There is no band {0}, only {1}", bands[i], count));
+			}
+		}
+		return bands;
+	}
+
+	/**
+	 * @return The bands as a comma separated list
+	 */
+	public static String format(int[] bands) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < bands.length; i++) {
+			buf.append(i > 0 ? "," : "").append(bands[i]);
+		}
+		return buf.toString();
+	}
+}
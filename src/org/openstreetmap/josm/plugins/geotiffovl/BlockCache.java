@@ -0,0 +1,353 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache for the blocks of one remote file
+ * 
+ * Every block is stored in a file of its own, so the least recently used
+ * blocks can be evicted once the cache grows beyond its size limit. An index
+ * file records the file length and a validator (ETag or Last-Modified) of the
+ * remote file. If the remote file changes, the cached blocks are discarded.
+ */
+public class BlockCache {
+
+	private static final int INDEX_MAGIC = 0x47544232; // "GTB2"
+	private static final String BLOCK_SUFFIX = ".blk";
+	/**
+	 * The size limit never goes below this many blocks, so that the blocks of
+	 * the reads in flight are not evicted before they are read
+	 */
+	private static final int MIN_BLOCKS = 64;
+
+	private final File m_dir;
+	private final File m_indexFile;
+	private final long m_length;
+	private final int m_blockSize;
+	private final String m_validator;
+	private final long m_maxBytes;
+	/**
+	 * Sizes of the present blocks, least recently used first
+	 */
+	private final LinkedHashMap<Long, Integer> m_present = new LinkedHashMap<Long, Integer>(
+			16, 0.75f, true);
+	private long m_bytes = 0;
+
+	/**
+	 * Opens or creates the cache in a directory
+	 * 
+	 * @param dir
+	 *            Directory for block and index files, created if needed
+	 * @param length
+	 *            Length of the remote file in bytes
+	 * @param validator
+	 *            ETag or Last-Modified of the remote file, may be empty
+	 * @param blockSize
+	 *            Size of a block in bytes
+	 * @param maxBytes
+	 *            Size limit of the cached blocks in bytes
+	 */
+	public BlockCache(File dir, long length, String validator, int blockSize,
+			long maxBytes) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create cache directory " + dir);
+		}
+		m_dir = dir;
+		m_indexFile = new File(dir, "index");
+		m_length = length;
+		m_blockSize = blockSize;
+		m_validator = validator;
+		m_maxBytes = Math.max(maxBytes, (long) MIN_BLOCKS * blockSize);
+
+		if (loadIndex()) {
+			loadBlocks();
+		} else {
+			for (File f : listFiles(dir)) {
+				if (!f.equals(m_indexFile)) {
+					f.delete();
+				}
+			}
+			writeIndex();
+		}
+		synchronized (this) {
+			evict(-1);
+		}
+	}
+
+	public long getLength() {
+		return m_length;
+	}
+
+	public int getBlockSize() {
+		return m_blockSize;
+	}
+
+	public long getBlockCount() {
+		return (m_length + m_blockSize - 1) / m_blockSize;
+	}
+
+	/**
+	 * @return true if the block is present. Counts as a use of the block.
+	 */
+	public synchronized boolean has(long block) {
+		return m_present.get(block) != null;
+	}
+
+	/**
+	 * @return Number of blocks present
+	 */
+	public synchronized int getCachedBlocks() {
+		return m_present.size();
+	}
+
+	/**
+	 * @return Bytes of the blocks present
+	 */
+	public synchronized long getCachedBytes() {
+		return m_bytes;
+	}
+
+	public long getMaxBytes() {
+		return m_maxBytes;
+	}
+
+	/**
+	 * Stores a complete block. Only the last block may be shorter than the
+	 * block size. Evicts the least recently used blocks beyond the size limit.
+	 */
+	public synchronized void put(long block, byte[] buf, int off, int len)
+			throws IOException {
+		FileOutputStream out = new FileOutputStream(blockFile(block));
+		try {
+			out.write(buf, off, len);
+		} finally {
+			out.close();
+		}
+		Integer old = m_present.put(block, len);
+		m_bytes += len - (old != null ? old : 0);
+		evict(block);
+	}
+
+	/**
+	 * Reads cached bytes
+	 * 
+	 * @return false if a block touched is not present, e.g. because it was
+	 *         evicted
+	 */
+	public synchronized boolean read(long pos, byte[] dst, int off, int len)
+			throws IOException {
+		long first = pos / m_blockSize;
+		long last = (pos + len - 1) / m_blockSize;
+		for (long b = first; b <= last; b++) {
+			if (m_present.get(b) == null) {
+				return false;
+			}
+		}
+		for (long b = first; b <= last; b++) {
+			long start = Math.max(pos, b * m_blockSize);
+			int n = (int) (Math.min(pos + len, (b + 1) * m_blockSize) - start);
+			RandomAccessFile in = new RandomAccessFile(blockFile(b), "r");
+			try {
+				in.seek(start - b * m_blockSize);
+				in.readFully(dst, off + (int) (start - pos), n);
+			} finally {
+				in.close();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the cache as used, which decides the order in which
+	 * {@link #trim} removes the caches of other files
+	 */
+	public void close() {
+		if (!m_indexFile.setLastModified(System.currentTimeMillis())) {
+			System.err.println("Could not touch block cache index "
+					+ m_indexFile);
+		}
+	}
+
+	/**
+	 * Removes the caches of other remote files in a directory, least recently
+	 * used first, until all caches in it fit into a size limit
+	 * 
+	 * @param root
+	 *            Directory holding the caches
+	 * @param maxBytes
+	 *            Size limit for all caches together
+	 * @param inUse
+	 *            Cache directories that must be kept
+	 */
+	public static void trim(File root, long maxBytes, Collection<File> inUse) {
+		File[] dirs = listFiles(root);
+		long total = 0;
+		for (File dir : dirs) {
+			total += size(dir);
+		}
+		Arrays.sort(dirs, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long ta = new File(a, "index").lastModified();
+				long tb = new File(b, "index").lastModified();
+				return ta < tb ? -1 : ta > tb ? 1 : 0;
+			}
+		});
+		for (File dir : dirs) {
+			if (total <= maxBytes) {
+				break;
+			}
+			if (!dir.isDirectory() || inUse.contains(dir)) {
+				continue;
+			}
+			total -= size(dir);
+			for (File f : listFiles(dir)) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used blocks beyond the size limit
+	 * 
+	 * @param keep
+	 *            Block that must not be deleted, or -1
+	 */
+	private void evict(long keep) {
+		Iterator<Map.Entry<Long, Integer>> it = m_present.entrySet()
+				.iterator();
+		while (m_bytes > m_maxBytes && it.hasNext()) {
+			Map.Entry<Long, Integer> e = it.next();
+			if (e.getKey() == keep) {
+				continue;
+			}
+			blockFile(e.getKey()).delete();
+			m_bytes -= e.getValue();
+			it.remove();
+		}
+	}
+
+	private File blockFile(long block) {
+		return new File(m_dir, block + BLOCK_SUFFIX);
+	}
+
+	/**
+	 * Finds the block files, in the order they were last written. Files of
+	 * the wrong size, e.g. cut short by a crash, are deleted.
+	 */
+	private void loadBlocks() {
+		List<File> files = new ArrayList<File>();
+		for (File f : listFiles(m_dir)) {
+			if (f.getName().endsWith(BLOCK_SUFFIX)) {
+				files.add(f);
+			}
+		}
+		File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long ta = a.lastModified();
+				long tb = b.lastModified();
+				return ta < tb ? -1 : ta > tb ? 1 : 0;
+			}
+		});
+		for (File f : sorted) {
+			String name = f.getName();
+			long block;
+			try {
+				block = Long.parseLong(name.substring(0, name.length()
+						- BLOCK_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				block = -1;
+			}
+			long len = block >= 0 ? Math.min(m_blockSize, m_length - block
+					* m_blockSize) : -1;
+			if (block < 0 || block >= getBlockCount() || f.length() != len) {
+				f.delete();
+				continue;
+			}
+			m_present.put(block, (int) len);
+			m_bytes += len;
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				m_indexFile));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(m_length);
+			out.writeInt(m_blockSize);
+			out.writeUTF(m_validator);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return true if the index belongs to the same remote file
+	 */
+	private boolean loadIndex() {
+		if (!m_indexFile.isFile()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(
+					m_indexFile));
+			try {
+				return in.readInt() == INDEX_MAGIC
+						&& in.readLong() == m_length
+						&& in.readInt() == m_blockSize
+						&& in.readUTF().equals(m_validator);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Discarding unreadable block cache index "
+					+ m_indexFile);
+			return false;
+		}
+	}
+
+	private static File[] listFiles(File dir) {
+		File[] files = dir.listFiles();
+		return files != null ? files : new File[0];
+	}
+
+	private static long size(File dir) {
+		long size = 0;
+		for (File f : listFiles(dir)) {
+			size += f.length();
+		}
+		return size;
+	}
+}
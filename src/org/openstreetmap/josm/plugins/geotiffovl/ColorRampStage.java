@@ -0,0 +1,164 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+/**
+ * Colours the first band with a colour ramp, producing red, green and blue
+ * bands of 0..255
+ */
+public class ColorRampStage implements TileStage {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	/**
+	 * Ramp names, followed by their colour stops as position from 0 to 1 and
+	 * RGB
+	 */
+	private static final Object[][] RAMPS = {
+			{ "terrain", new double[][] { { 0.0, 0, 97, 71 },
+					{ 0.15, 16, 122, 47 }, { 0.3, 232, 215, 125 },
+					{ 0.55, 161, 67, 0 }, { 0.75, 130, 30, 30 },
+					{ 0.9, 161, 161, 161 }, { 1.0, 255, 255, 255 } } },
+			{ "heat", new double[][] { { 0.0, 0, 0, 0 }, { 0.35, 170, 0, 0 },
+					{ 0.7, 255, 200, 0 }, { 1.0, 255, 255, 255 } } },
+			{ "spectral", new double[][] { { 0.0, 43, 131, 186 },
+					{ 0.25, 171, 221, 164 }, { 0.5, 255, 255, 191 },
+					{ 0.75, 253, 174, 97 }, { 1.0, 215, 25, 28 } } },
+			{ "grey", new double[][] { { 0.0, 0, 0, 0 },
+					{ 1.0, 255, 255, 255 } } } };
+
+	/**
+	 * Number of colours the ramp is sampled to
+	 */
+	private static final int STEPS = 1024;
+
+	private final String m_name;
+	private final float[] m_red = new float[STEPS];
+	private final float[] m_green = new float[STEPS];
+	private final float[] m_blue = new float[STEPS];
+	private final double m_low;
+	private final double m_high;
+
+	/**
+	 * @param name
+	 *            One of {@link #getNames()}
+	 * @param low
+	 *            Value at the start of the ramp, NaN for the smallest value of
+	 *            the band
+	 * @param high
+	 *            Value at the end of the ramp, NaN for the largest value of
+	 *            the band
+	 * @throws IllegalArgumentException
+	 *             If there is no ramp of that name
+	 */
+	public ColorRampStage(String name, double low, double high) {
+		double[][] stops = null;
+		for (Object[] ramp : RAMPS) {
+			if (ramp[0].equals(name)) {
+				stops = (double[][]) ramp[1];
+			}
+		}
+		if (stops == null) {
+			throw new IllegalArgumentException(tr(
+					"Unknown colour ramp ''{0}''", name));
+		}
+		m_name = name;
+		m_low = low;
+		m_high = high;
+
+		int stop = 0;
+		for (int i = 0; i < STEPS; i++) {
+			double pos = i / (STEPS - 1.0);
+			while (stop < stops.length - 2 && pos > stops[stop + 1][0]) {
+				stop++;
+			}
+			double[] a = stops[stop];
+			double[] b = stops[stop + 1];
+			double t = Math.max(0, Math.min(1, (pos - a[0]) / (b[0] - a[0])));
+			m_red[i] = (float) (a[1] + (b[1] - a[1]) * t);
+			m_green[i] = (float) (a[2] + (b[2] - a[2]) * t);
+			m_blue[i] = (float) (a[3] + (b[3] - a[3]) * t);
+		}
+	}
+
+	/**
+	 * @return Names of the available ramps
+	 */
+	public static String[] getNames() {
+		String[] names = new String[RAMPS.length];
+		for (int i = 0; i < RAMPS.length; i++) {
+			names[i] = (String) RAMPS[i][0];
+		}
+		return names;
+	}
+
+	public String getName() {
+		return m_name;
+	}
+
+	public int getHalo() {
+		return 0;
+	}
+
+	public int getBandCount(int bands, boolean raw) {
+		return 3;
+	}
+
+	public void markRawBands(boolean[] used, boolean raw) {
+		if (raw) {
+			used[0] = true;
+		}
+	}
+
+	public void apply(TileData tile) {
+		double low = Double.isNaN(m_low) ? tile.getMin(0) : m_low;
+		double high = Double.isNaN(m_high) ? tile.getMax(0) : m_high;
+		final float offset = (float) low;
+		final float factor = high > low ? (float) ((STEPS - 1) / (high - low))
+				: 0f;
+		final float[] src = tile.getBands()[0];
+		final float[] red = new float[src.length];
+		final float[] green = new float[src.length];
+		final float[] blue = new float[src.length];
+
+		final int width = tile.getWidth();
+		ParallelRows.run(width, tile.getHeight(), new ParallelRows.Body() {
+			public void run(int y0, int y1) {
+				for (int i = y0 * width; i < y1 * width; i++) {
+					float v = src[i];
+					if (v != v) {
+						red[i] = green[i] = blue[i] = Float.NaN;
+						continue;
+					}
+					int step = (int) ((v - offset) * factor + 0.5f);
+					step = step < 0 ? 0 : (step >= STEPS ? STEPS - 1 : step);
+					red[i] = m_red[step];
+					green[i] = m_green[step];
+					blue[i] = m_blue[step];
+				}
+			}
+		});
+		tile.setBands(new float[][] { red, green, blue }, new double[] { 0,
+				0, 0 }, new double[] { 255, 255, 255 }, null, null);
+	}
+}
@@ -0,0 +1,485 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Second cache tier holding tiles in compressed form
+ * 
+ * Tiles evicted from the decoded tier end up here. Getting a tile back costs
+ * an inflate or a JPEG decode, which is a lot cheaper than reading and warping
+ * it again with GDAL. Lossless compression stores the raw data buffer with a
+ * horizontal delta filter and deflate; lossy compression uses JPEG and falls
+ * back to lossless for images JPEG cannot represent. A JPEG tile taken back
+ * keeps its compressed bytes while decoded, so evicting it again neither
+ * costs an encode nor loses quality once more.
+ */
+public class CompressedTileCache {
+
+	/**
+	 * Lossless compression, delta filter and deflate
+	 */
+	public static final String DEFLATE = "deflate";
+	/**
+	 * Lossy compression with configurable quality
+	 */
+	public static final String JPEG = "jpeg";
+
+	/**
+	 * A compressed tile along with everything needed to restore it
+	 */
+	private static class Entry {
+		byte[] m_data;
+		boolean m_jpeg;
+		ColorModel m_colorModel;
+		SampleModel m_sampleModel;
+		int m_dataType;
+		int m_numBanks;
+		int m_bankSize;
+		long m_rawBytes;
+	}
+
+	private final LinkedHashMap<TileKey, Entry> m_tiles = new LinkedHashMap<TileKey, Entry>(
+			64, 0.75f, true);
+	/**
+	 * JPEG entries of tiles taken back, by the decoded image. Weak, so that
+	 * they go along with the image once it is dropped from the decoded tier.
+	 */
+	private final Map<BufferedImage, Entry> m_taken = new WeakHashMap<BufferedImage, Entry>();
+	private final long m_maxBytes;
+	private final boolean m_lossy;
+	private final float m_quality;
+	private long m_bytes = 0;
+	private long m_rawBytes = 0;
+	private long m_hits = 0;
+	private long m_encoded = 0;
+	private long m_encodeNanos = 0;
+	private long m_decoded = 0;
+	private long m_decodeNanos = 0;
+
+	/**
+	 * @param maxBytes
+	 *            Memory budget for compressed tiles
+	 * @param method
+	 *            {@link #DEFLATE} or {@link #JPEG}
+	 * @param quality
+	 *            JPEG quality between 0 and 1, ignored for deflate
+	 */
+	public CompressedTileCache(long maxBytes, String method, float quality) {
+		m_maxBytes = maxBytes;
+		m_lossy = JPEG.equalsIgnoreCase(method);
+		m_quality = quality;
+	}
+
+	/**
+	 * Compresses a tile and adds it, evicting the least recently used ones if
+	 * needed. Compression happens without holding the lock.
+	 */
+	public void put(TileKey key, BufferedImage img) {
+		Entry entry;
+		synchronized (this) {
+			entry = m_taken.remove(img);
+		}
+		long nanos = 0;
+		if (entry == null) {
+			long start = System.nanoTime();
+			try {
+				entry = encode(img);
+			} catch (IOException e) {
+				System.err.println("Could not compress tile " + key);
+				e.printStackTrace(System.err);
+				return;
+			}
+			nanos = System.nanoTime() - start;
+		}
+
+		synchronized (this) {
+			if (nanos > 0) {
+				m_encoded++;
+				m_encodeNanos += nanos;
+			}
+
+			Entry old = m_tiles.put(key, entry);
+			if (old != null) {
+				m_bytes -= old.m_data.length;
+				m_rawBytes -= old.m_rawBytes;
+			}
+			m_bytes += entry.m_data.length;
+			m_rawBytes += entry.m_rawBytes;
+
+			Iterator<Map.Entry<TileKey, Entry>> it = m_tiles.entrySet()
+					.iterator();
+			while (m_bytes > m_maxBytes && it.hasNext()) {
+				Entry eldest = it.next().getValue();
+				m_bytes -= eldest.m_data.length;
+				m_rawBytes -= eldest.m_rawBytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes a tile and returns it decompressed
+	 * 
+	 * @return The tile or null if it is not in this tier
+	 */
+	public BufferedImage take(TileKey key) {
+		Entry entry;
+		synchronized (this) {
+			entry = m_tiles.remove(key);
+			if (entry == null) {
+				return null;
+			}
+			m_bytes -= entry.m_data.length;
+			m_rawBytes -= entry.m_rawBytes;
+			m_hits++;
+		}
+
+		long start = System.nanoTime();
+		BufferedImage img;
+		try {
+			img = decode(entry);
+		} catch (IOException e) {
+			System.err.println("Could not decompress tile " + key);
+			e.printStackTrace(System.err);
+			return null;
+		}
+		long nanos = System.nanoTime() - start;
+
+		synchronized (this) {
+			m_decoded++;
+			m_decodeNanos += nanos;
+			if (entry.m_jpeg) {
+				m_taken.put(img, entry);
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Drops a tile without decompressing it
+	 */
+	public synchronized void remove(TileKey key) {
+		Entry entry = m_tiles.remove(key);
+		if (entry != null) {
+			m_bytes -= entry.m_data.length;
+			m_rawBytes -= entry.m_rawBytes;
+		}
+	}
+
+	public synchronized boolean contains(TileKey key) {
+		return m_tiles.containsKey(key);
+	}
+
+	public synchronized void clear() {
+		m_tiles.clear();
+		m_taken.clear();
+		m_bytes = 0;
+		m_rawBytes = 0;
+	}
+
+	public synchronized int getTileCount() {
+		return m_tiles.size();
+	}
+
+	public synchronized long getBytes() {
+		return m_bytes;
+	}
+
+	public long getMaxBytes() {
+		return m_maxBytes;
+	}
+
+	public boolean isLossy() {
+		return m_lossy;
+	}
+
+	public synchronized long getHits() {
+		return m_hits;
+	}
+
+	/**
+	 * @return Size of the stored tiles decoded divided by their compressed
+	 *         size, 0 if empty
+	 */
+	public synchronized double getCompressionRatio() {
+		return m_bytes > 0 ? (double) m_rawBytes / m_bytes : 0.0;
+	}
+
+	/**
+	 * @return Mean time to compress a tile in milliseconds
+	 */
+	public synchronized double getMeanEncodeMillis() {
+		return m_encoded > 0 ? m_encodeNanos / 1e6 / m_encoded : 0.0;
+	}
+
+	/**
+	 * @return Mean time to decompress a tile in milliseconds
+	 */
+	public synchronized double getMeanDecodeMillis() {
+		return m_decoded > 0 ? m_decodeNanos / 1e6 / m_decoded : 0.0;
+	}
+
+	private Entry encode(BufferedImage img) throws IOException {
+		Entry entry = new Entry();
+		entry.m_rawBytes = TileCache.sizeOf(img);
+		if (m_lossy && isJpegCompatible(img)) {
+			entry.m_jpeg = true;
+			entry.m_data = encodeJpeg(img);
+			return entry;
+		}
+
+		DataBuffer buf = img.getRaster().getDataBuffer();
+		entry.m_colorModel = img.getColorModel();
+		entry.m_sampleModel = img.getSampleModel();
+		entry.m_dataType = buf.getDataType();
+		entry.m_numBanks = buf.getNumBanks();
+		entry.m_bankSize = buf.getSize();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				(int) (entry.m_rawBytes / 2));
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+		for (int b = 0; b < entry.m_numBanks; b++) {
+			out.write(bankToBytes(buf, b));
+		}
+		out.close();
+		deflater.end();
+		entry.m_data = bytes.toByteArray();
+		return entry;
+	}
+
+	private BufferedImage decode(Entry entry) throws IOException {
+		if (entry.m_jpeg) {
+			// Memory cache, the default cache of ImageIO goes to temp files
+			return ImageIO.read(new MemoryCacheImageInputStream(
+					new ByteArrayInputStream(entry.m_data)));
+		}
+
+		int bankBytes = entry.m_bankSize
+				* DataBuffer.getDataTypeSize(entry.m_dataType) / 8;
+		byte[] raw = new byte[bankBytes];
+		InputStream in = new InflaterInputStream(new ByteArrayInputStream(
+				entry.m_data));
+		DataBuffer buf;
+		switch (entry.m_dataType) {
+		case DataBuffer.TYPE_BYTE:
+			buf = new DataBufferByte(entry.m_bankSize, entry.m_numBanks);
+			break;
+		case DataBuffer.TYPE_USHORT:
+			buf = new DataBufferUShort(entry.m_bankSize, entry.m_numBanks);
+			break;
+		case DataBuffer.TYPE_SHORT:
+			buf = new DataBufferShort(entry.m_bankSize, entry.m_numBanks);
+			break;
+		case DataBuffer.TYPE_INT:
+			buf = new DataBufferInt(entry.m_bankSize, entry.m_numBanks);
+			break;
+		default:
+			throw new IOException("Unsupported data type " + entry.m_dataType);
+		}
+		try {
+			for (int b = 0; b < entry.m_numBanks; b++) {
+				readFully(in, raw);
+				bytesToBank(raw, buf, b);
+			}
+		} finally {
+			in.close();
+		}
+
+		WritableRaster raster = Raster.createWritableRaster(
+				entry.m_sampleModel, buf, null);
+		return new BufferedImage(entry.m_colorModel, raster,
+				entry.m_colorModel.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Serializes a bank of a data buffer. Byte data gets a delta filter, which
+	 * makes natural imagery compress considerably better. Packed ARGB pixels
+	 * are split into one plane per channel first, each delta filtered.
+	 */
+	private static byte[] bankToBytes(DataBuffer buf, int bank) {
+		switch (buf.getDataType()) {
+		case DataBuffer.TYPE_BYTE: {
+			byte[] src = ((DataBufferByte) buf).getData(bank);
+			byte[] dst = new byte[src.length];
+			byte prev = 0;
+			for (int i = 0; i < src.length; i++) {
+				dst[i] = (byte) (src[i] - prev);
+				prev = src[i];
+			}
+			return dst;
+		}
+		case DataBuffer.TYPE_USHORT: {
+			short[] src = ((DataBufferUShort) buf).getData(bank);
+			ByteBuffer dst = ByteBuffer.allocate(src.length * 2);
+			dst.asShortBuffer().put(src);
+			return dst.array();
+		}
+		case DataBuffer.TYPE_SHORT: {
+			short[] src = ((DataBufferShort) buf).getData(bank);
+			ByteBuffer dst = ByteBuffer.allocate(src.length * 2);
+			dst.asShortBuffer().put(src);
+			return dst.array();
+		}
+		case DataBuffer.TYPE_INT: {
+			int[] src = ((DataBufferInt) buf).getData(bank);
+			byte[] dst = new byte[src.length * 4];
+			for (int c = 0; c < 4; c++) {
+				int shift = 24 - 8 * c;
+				int off = c * src.length;
+				byte prev = 0;
+				for (int i = 0; i < src.length; i++) {
+					byte v = (byte) (src[i] >>> shift);
+					dst[off + i] = (byte) (v - prev);
+					prev = v;
+				}
+			}
+			return dst;
+		}
+		default:
+			throw new IllegalArgumentException("Unsupported data type "
+					+ buf.getDataType());
+		}
+	}
+
+	/**
+	 * Inverse of {@link #bankToBytes(DataBuffer, int)}
+	 */
+	private static void bytesToBank(byte[] raw, DataBuffer buf, int bank) {
+		switch (buf.getDataType()) {
+		case DataBuffer.TYPE_BYTE: {
+			byte[] dst = ((DataBufferByte) buf).getData(bank);
+			byte prev = 0;
+			for (int i = 0; i < dst.length; i++) {
+				prev = (byte) (prev + raw[i]);
+				dst[i] = prev;
+			}
+			break;
+		}
+		case DataBuffer.TYPE_USHORT:
+			ByteBuffer.wrap(raw).asShortBuffer().get(
+					((DataBufferUShort) buf).getData(bank));
+			break;
+		case DataBuffer.TYPE_SHORT:
+			ByteBuffer.wrap(raw).asShortBuffer().get(
+					((DataBufferShort) buf).getData(bank));
+			break;
+		case DataBuffer.TYPE_INT: {
+			int[] dst = ((DataBufferInt) buf).getData(bank);
+			for (int c = 0; c < 4; c++) {
+				int shift = 24 - 8 * c;
+				int off = c * dst.length;
+				byte prev = 0;
+				for (int i = 0; i < dst.length; i++) {
+					prev = (byte) (prev + raw[off + i]);
+					dst[i] |= (prev & 0xff) << shift;
+				}
+			}
+			break;
+		}
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] dst)
+			throws IOException {
+		int off = 0;
+		while (off < dst.length) {
+			int n = in.read(dst, off, dst.length - off);
+			if (n < 0) {
+				throw new IOException("Compressed tile is truncated");
+			}
+			off += n;
+		}
+	}
+
+	/**
+	 * JPEG can only hold 8 bit grey or RGB images without palette or alpha
+	 */
+	private static boolean isJpegCompatible(BufferedImage img) {
+		if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+			return true;
+		}
+		int bands = img.getSampleModel().getNumBands();
+		return img.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE
+				&& !(img.getColorModel() instanceof IndexColorModel)
+				&& (bands == 1 || bands == 3);
+	}
+
+	private byte[] encodeJpeg(BufferedImage img) throws IOException {
+		// The JPEG writer is picky about the image layout, so hand it one of
+		// the standard types
+		int type = img.getSampleModel().getNumBands() == 1 ? BufferedImage.TYPE_BYTE_GRAY
+				: BufferedImage.TYPE_3BYTE_BGR;
+		BufferedImage std = img;
+		if (img.getType() != type) {
+			std = new BufferedImage(img.getWidth(), img.getHeight(), type);
+			Graphics2D g = std.createGraphics();
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+		}
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+				.next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(m_quality);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(std, null, null), param);
+		} finally {
+			writer.dispose();
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,261 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.GridLayout;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import javax.swing.AbstractAction;
+import javax.swing.ButtonGroup;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JRadioButton;
+import javax.swing.JSpinner;
+import javax.swing.ProgressMonitor;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.gdal.gdal.ProgressCallback;
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+
+/**
+ * Exports the visible area or the bounding box of the selection to a new
+ * GeoTIFF in the current projection
+ */
+public class ExportGeoTiffAction extends AbstractAction {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	/**
+	 * Needed for serialization
+	 */
+	private static final long serialVersionUID = 6038791432180447651L;
+
+	private final GDALRasterLayer m_layer;
+
+	public ExportGeoTiffAction(GDALRasterLayer layer) {
+		super(tr("Export to GeoTiff..."));
+		m_layer = layer;
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		final GeoTiffExporter exporter;
+		try {
+			exporter = m_layer.createExporter();
+		} catch (IOException ex) {
+			JOptionPane.showMessageDialog(Main.parent, ex.getMessage(),
+					tr("Export to GeoTiff"), JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+
+		boolean started = false;
+		try {
+			started = showDialogAndStart(exporter);
+		} finally {
+			if (!started) {
+				exporter.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Asks for region, resolution, compression and file, then runs the export
+	 * in the background
+	 * 
+	 * @return True if the export was started and owns the exporter now
+	 */
+	private boolean showDialogAndStart(final GeoTiffExporter exporter) {
+		// Regions to choose from
+		final ProjectionBounds visible = Main.map.mapView
+				.getProjectionBounds();
+		ProjectionBounds selection = null;
+		DataSet ds = Main.main.getCurrentDataSet();
+		Collection<OsmPrimitive> selected = ds != null ? ds.getSelected()
+				: null;
+		if (selected != null && !selected.isEmpty()) {
+			BoundingXYVisitor v = new BoundingXYVisitor();
+			for (OsmPrimitive p : selected) {
+				p.visit(v);
+			}
+			selection = v.getBounds();
+		}
+		final ProjectionBounds selectionBounds = selection;
+
+		final JRadioButton useVisible = new JRadioButton(tr("Visible area"),
+				true);
+		JRadioButton useSelection = new JRadioButton(
+				tr("Bounding box of selection"));
+		useSelection.setEnabled(selection != null);
+		ButtonGroup group = new ButtonGroup();
+		group.add(useVisible);
+		group.add(useSelection);
+
+		int factor = exporter.factorForPixelSize(Main.map.mapView.getScale());
+		final JSpinner factorSpinner = new JSpinner(new SpinnerNumberModel(
+				factor, 1, Integer.MAX_VALUE, 1));
+		final JLabel sizeLabel = new JLabel();
+		JComboBox<String> compression = new JComboBox<String>(
+				GeoTiffExporter.COMPRESSIONS);
+		compression.setSelectedItem(Main.pref.get(
+				"geotiffovl.export.compression", "DEFLATE"));
+
+		// Keep the output size up to date
+		final Runnable update = new Runnable() {
+			public void run() {
+				ProjectionBounds b = useVisible.isSelected() ? visible
+						: selectionBounds;
+				int f = (Integer) factorSpinner.getValue();
+				Rectangle size = GeoTiffExporter.getOutputSize(exporter
+						.getWindow(b.min, b.max, f), f);
+				sizeLabel.setText(tr("{0} x {1} pixels of {2} map units",
+						size.width, size.height, exporter.getPixelSize() * f));
+			}
+		};
+		update.run();
+		factorSpinner.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				update.run();
+			}
+		});
+		ActionListener regionListener = new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				update.run();
+			}
+		};
+		useVisible.addActionListener(regionListener);
+		useSelection.addActionListener(regionListener);
+
+		JPanel panel = new JPanel(new GridLayout(6, 1));
+		panel.add(useVisible);
+		panel.add(useSelection);
+		JPanel factorPanel = new JPanel(new GridLayout(1, 2));
+		factorPanel.add(new JLabel(tr("Pixel size (multiple of source):")));
+		factorPanel.add(factorSpinner);
+		panel.add(factorPanel);
+		panel.add(sizeLabel);
+		JPanel compressionPanel = new JPanel(new GridLayout(1, 2));
+		compressionPanel.add(new JLabel(tr("Compression:")));
+		compressionPanel.add(compression);
+		panel.add(compressionPanel);
+		if (m_layer.getPipeline() != null) {
+			panel.add(new JLabel(tr("Raw values of the shown bands, without processing.")));
+		}
+		if (JOptionPane.showConfirmDialog(Main.parent, panel,
+				tr("Export to GeoTiff"), JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+			return false;
+		}
+
+		ProjectionBounds bounds = useVisible.isSelected() ? visible
+				: selectionBounds;
+		final int f = (Integer) factorSpinner.getValue();
+		final Rectangle window = exporter.getWindow(bounds.min, bounds.max, f);
+		if (window.isEmpty()) {
+			JOptionPane.showMessageDialog(Main.parent,
+					tr("The chosen area does not overlap the image."));
+			return false;
+		}
+		final String method = (String) compression.getSelectedItem();
+		Main.pref.put("geotiffovl.export.compression", method);
+
+		// Ask for the output file
+		JFileChooser fc = new JFileChooser(Main.pref.get(
+				"geotiffovl.lastexportdir", ""));
+		fc.setMultiSelectionEnabled(false);
+		if (fc.showSaveDialog(Main.parent) != JFileChooser.APPROVE_OPTION) {
+			return false;
+		}
+		File chosen = fc.getSelectedFile();
+		String name = chosen.getName().toLowerCase();
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff")) {
+			chosen = new File(chosen.getParentFile(), chosen.getName() + ".tif");
+		}
+		final File file = chosen;
+		Main.pref.put("geotiffovl.lastexportdir", file.getParent());
+		if (file.exists()
+				&& JOptionPane.showConfirmDialog(Main.parent, tr(
+						"File {0} exists. Overwrite it?", file.getName()),
+						tr("Export to GeoTiff"), JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+			return false;
+		}
+
+		// Export in the background, GDAL reports progress in [0, 1]
+		final ProgressMonitor monitor = new ProgressMonitor(Main.parent, tr(
+				"Exporting {0}", file.getName()), null, 0, 1000);
+		final ProgressCallback progress = new ProgressCallback() {
+			@Override
+			public int run(final double complete, String message) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						monitor.setProgress((int) (complete * 1000));
+					}
+				});
+				return monitor.isCanceled() ? 0 : 1;
+			}
+		};
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				String error = null;
+				try {
+					exporter.write(file, window, f, method, progress);
+				} catch (IOException ex) {
+					error = ex.getMessage();
+				} finally {
+					exporter.dispose();
+				}
+				final String message = error == null ? tr(
+						"Exported {0} in {1} s.", file.getName(), (System
+								.currentTimeMillis() - start) / 1000)
+						: tr("Export of {0} failed: {1}", file.getName(),
+								error);
+				final boolean failed = error != null;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						monitor.close();
+						JOptionPane.showMessageDialog(Main.parent, message,
+								tr("Export to GeoTiff"),
+								failed ? JOptionPane.ERROR_MESSAGE
+										: JOptionPane.INFORMATION_MESSAGE);
+					}
+				});
+			}
+		}, "geotiffovl-export");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+}
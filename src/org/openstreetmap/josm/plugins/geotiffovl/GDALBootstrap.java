@@ -0,0 +1,143 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.gdal.gdal.gdal;
+import org.openstreetmap.josm.Main;
+
+/**
+ * Loads and configures GDAL on first use instead of while JOSM starts
+ * 
+ * Loading the native libraries and registering all drivers takes a noticeable
+ * part of JOSM's startup, and is wasted in sessions that never open a raster.
+ * Everything that needs GDAL calls {@link #ensure()} first. If enabled, the
+ * plugin starts a background thread right after startup to have GDAL ready by
+ * the time it is needed, see {@link #prewarm()}.
+ * 
+ * Optionally, drivers are skipped through GDAL_SKIP, which GDAL reads while
+ * registering. This also makes opening files cheaper as fewer drivers probe
+ * each file.
+ */
+public class GDALBootstrap {
+
+	/**
+	 * Drivers the plugin itself needs: sources, warped and exported images,
+	 * overviews. Never skipped.
+	 */
+	private static final String[] REQUIRED_DRIVERS = { "GTiff", "VRT", "MEM" };
+
+	private static boolean s_done = false;
+	private static Throwable s_error = null;
+	private static long s_millis = 0;
+	private static int s_drivers = 0;
+
+	/**
+	 * Loads, tunes and registers GDAL unless that has happened already.
+	 * Blocks while another thread does it.
+	 * 
+	 * @return True if GDAL is ready, false if it could not be loaded, see
+	 *         {@link #getError()}
+	 */
+	public static synchronized boolean ensure() {
+		if (!s_done) {
+			s_done = true;
+			long start = System.nanoTime();
+			try {
+				// Size caches and thread pools before GDAL gets to use them
+				GDALTuning.apply();
+
+				// Register raster formats, needed to actually open a file
+				skipDrivers(Main.pref.get("geotiffovl.gdal.skip", ""));
+				gdal.AllRegister();
+				s_drivers = gdal.GetDriverCount();
+			} catch (LinkageError e) {
+				// Native library or gdal.jar missing
+				s_error = e;
+				System.err.println("Could not load GDAL: " + e);
+				e.printStackTrace(System.err);
+			}
+			// Shown in the layer info
+			s_millis = (System.nanoTime() - start) / 1000000;
+		}
+		return s_error == null;
+	}
+
+	/**
+	 * Initializes GDAL on a background thread of low priority, if enabled in
+	 * the preferences
+	 */
+	public static void prewarm() {
+		if (!Main.pref.getBoolean("geotiffovl.gdal.prewarm", false)) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				ensure();
+			}
+		}, "geotiffovl-gdal-init");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Adds the drivers of a comma separated list to GDAL_SKIP, except the
+	 * ones the plugin needs. Must be called before the drivers are registered.
+	 */
+	private static void skipDrivers(String drivers) {
+		Set<String> required = new HashSet<String>(Arrays
+				.asList(REQUIRED_DRIVERS));
+		StringBuilder skip = new StringBuilder(gdal.GetConfigOption(
+				"GDAL_SKIP", ""));
+		for (String name : drivers.split(",")) {
+			name = name.trim();
+			if (name.length() > 0 && !required.contains(name)) {
+				skip.append(skip.length() > 0 ? " " : "").append(name);
+			}
+		}
+		if (skip.length() > 0) {
+			gdal.SetConfigOption("GDAL_SKIP", skip.toString());
+		}
+	}
+
+	/**
+	 * @return Why GDAL could not be loaded, null if it could or has not been
+	 *         tried yet
+	 */
+	public static synchronized Throwable getError() {
+		return s_error;
+	}
+
+	/**
+	 * @return Time initialization took in milliseconds, i.e. the time taken
+	 *         off JOSM's startup
+	 */
+	public static synchronized long getMillis() {
+		return s_millis;
+	}
+
+	/**
+	 * @return Number of registered drivers
+	 */
+	public static synchronized int getDriverCount() {
+		return s_drivers;
+	}
+}
@@ -22,18 +22,32 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseMotionListener;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
 
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.gdal;
 import org.gdal.gdalconst.gdalconst;
+import org.gdal.osr.CoordinateTransformation;
 import org.gdal.osr.SpatialReference;
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.data.Bounds;
@@ -57,7 +71,20 @@ public class GDALRasterLayer extends Layer {
 		marktr("");
 	}
 
+	/**
+	 * Source pixels around a changed region that cubic resampling reads
+	 */
+	private static final int RESAMPLING_RADIUS = 2;
+	/**
+	 * Points per edge of a changed region converted to the projection
+	 */
+	private static final int EDGE_POINTS = 8;
+
 	private File m_sourceFile;
+	/**
+	 * Remote source, null for local files
+	 */
+	private RemoteRaster m_remote;
 	/**
 	 * Layer name, used for displaying in layer list
 	 */
@@ -67,17 +94,70 @@ public class GDALRasterLayer extends Layer {
 	 */
 	private Dataset m_srcDataset;
 	/**
-	 * Last used projection to display image
+	 * Decoded tiles of the projected image
+	 */
+	private TileCache m_cache;
+	/**
+	 * Background reader for tiles, owns the projected dataset
+	 */
+	private TileLoader m_loader;
+	/**
+	 * Requests tiles ahead of pan and zoom movements, null if disabled
+	 */
+	private PrefetchPlanner m_planner;
+	/**
+	 * Processing applied to every tile, null for none
+	 */
+	private TilePipeline m_pipeline;
+	/**
+	 * Bands shown, 1-based, null to pick them automatically
+	 */
+	private int[] m_bands;
+	/**
+	 * Builds overviews for a local source without, null if not needed
 	 */
-	private String m_lastProj;
+	private OverviewBuilder m_overviews;
 	/**
-	 * Projected image, used for displaying
+	 * True while outdated overviews could not be deleted, so that zoomed out
+	 * tiles may show the old image until the overviews are rebuilt
 	 */
-	private BufferedImage m_image;
+	private boolean m_overviewsStale = false;
 	/**
-	 * Coordinate transformation of projected image
+	 * Reloads a local source when it changes on disk, null if disabled
 	 */
-	private double[] m_geoTransform;
+	private SourceWatcher m_watcher;
+	/**
+	 * Tiles painted last time, to tell when the view has changed
+	 */
+	private Rectangle m_lastVisible = new Rectangle();
+	private int m_lastLevel = -1;
+	/**
+	 * Remote transfer counters at the time the view last changed
+	 */
+	private long m_viewStartBytes = 0;
+	private long m_viewStartRequests = 0;
+	/**
+	 * Reads values from the source dataset, created on first use and
+	 * recreated when the projection changes. Guarded by m_samplerLock, as the
+	 * readout samples in the background.
+	 */
+	private RasterSampler m_sampler;
+	private String m_samplerProj;
+	private final Object m_samplerLock = new Object();
+	/**
+	 * Shows the raster values under the mouse cursor, null until the layer is
+	 * first painted in a map view or if disabled
+	 */
+	private MouseMotionListener m_readoutListener;
+	private MapView m_readoutView;
+	private String m_readoutText;
+	/**
+	 * Samples the readout off the event dispatch thread. Only the latest
+	 * cursor position is sampled, positions passed over in the meantime are
+	 * dropped.
+	 */
+	private ExecutorService m_readoutExecutor;
+	private final AtomicReference<EastNorth> m_readoutPoint = new AtomicReference<EastNorth>();
 
 	/**
 	 * Constructs a layer suitable to display a GDAL raster image with proper
@@ -87,15 +167,61 @@ public class GDALRasterLayer extends Layer {
 	 *            Name for the layer, e.g. the source file name
 	 * @param dataset
 	 *            The GDAL dataset
+	 * @param sourceFile
+	 *            File the dataset was opened from
 	 */
 	public GDALRasterLayer(String name, Dataset dataset, File sourceFile) {
+		this(name, dataset, sourceFile, null);
+	}
+
+	/**
+	 * Constructs a layer for a remote GDAL raster image
+	 * 
+	 * @param name
+	 *            Name for the layer, e.g. the source file name
+	 * @param dataset
+	 *            The GDAL dataset, opened through the {@link RangeCacheProxy}
+	 * @param remote
+	 *            The remote file behind the dataset
+	 */
+	public GDALRasterLayer(String name, Dataset dataset, RemoteRaster remote) {
+		this(name, dataset, null, remote);
+	}
+
+	private GDALRasterLayer(String name, Dataset dataset, File sourceFile,
+			RemoteRaster remote) {
 		super(tr("Image: {0}", name));
 
 		m_sourceFile = sourceFile;
+		m_remote = remote;
 		m_name = name;
 		m_srcDataset = dataset;
-		m_lastProj = "";
-		m_image = null;
+
+		long cacheBytes = Main.pref.getInteger("geotiffovl.cache.mb", 128)
+				* 1024L * 1024L;
+		long compressedBytes = Main.pref.getInteger(
+				"geotiffovl.cache.compressed.mb", 256) * 1024L * 1024L;
+		CompressedTileCache compressed = null;
+		if (compressedBytes > 0) {
+			compressed = new CompressedTileCache(compressedBytes, Main.pref
+					.get("geotiffovl.cache.compression",
+							CompressedTileCache.DEFLATE), Float
+					.parseFloat(Main.pref.get("geotiffovl.cache.jpeg.quality",
+							"0.85")));
+		}
+		m_cache = new TileCache(cacheBytes, compressed);
+		m_loader = new TileLoader(m_cache, new TileLoader.Listener() {
+			public void tileLoaded(TileKey key) {
+				if (Main.map != null && Main.map.mapView != null) {
+					Main.map.mapView.repaint();
+				}
+			}
+		});
+		if (Main.pref.getBoolean("geotiffovl.prefetch", true)) {
+			double lookahead = Double.parseDouble(Main.pref.get(
+					"geotiffovl.prefetch.lookahead", "1.0"));
+			m_planner = new PrefetchPlanner(lookahead);
+		}
 
 		// Project image for the first time
 		try {
@@ -106,6 +232,74 @@ public class GDALRasterLayer extends Layer {
 			System.err.println(e.getMessage());
 			e.printStackTrace(System.err);
 		}
+
+		startOverviews(null);
+
+		// Pick up changes made by other programs while the layer is open
+		if (sourceFile != null && Main.pref.getBoolean("geotiffovl.watch", true)) {
+			m_watcher = new SourceWatcher(sourceFile, Main.pref.getInteger(
+					"geotiffovl.watch.block", 512),
+					new SourceWatcher.Listener() {
+						public void sourceChanged(SourceWatcher watcher,
+								final List<Rectangle> regions) {
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() {
+									// Unless the layer is gone by now
+									if (m_watcher != null) {
+										reloadSource(regions);
+									}
+								}
+							});
+						}
+					});
+			try {
+				m_watcher.start();
+			} catch (IOException e) {
+				System.err.println(tr("Cannot watch ''{0}'' for changes: {1}",
+						sourceFile, e.getMessage()));
+				m_watcher = null;
+			}
+		}
+	}
+
+	/**
+	 * Builds overviews in the background if the source is a local file
+	 * without, as zoomed out views are slow without
+	 * 
+	 * @param previous
+	 *            Builder of overviews of a previous version of the file, null
+	 *            if none. If given, the overviews are built anew once it has
+	 *            stopped, whether the file has overviews or not.
+	 */
+	private void startOverviews(OverviewBuilder previous) {
+		if (m_sourceFile != null
+				&& Main.pref.getBoolean("geotiffovl.overviews.build", true)
+				&& (previous != null || OverviewBuilder.isNeeded(m_srcDataset))) {
+			m_overviews = new OverviewBuilder(m_sourceFile, m_srcDataset,
+					new OverviewBuilder.Listener() {
+						public void overviewsBuilt(final OverviewBuilder builder) {
+							SwingUtilities.invokeLater(new Runnable() {
+								public void run() {
+									// Unless the layer is gone or the
+									// overviews are outdated by now
+									if (m_overviews != builder) {
+										return;
+									}
+									// Tiles read from outdated overviews go
+									boolean stale = m_overviewsStale;
+									if (reopenSource(m_loader.getSource(),
+											!stale)) {
+										m_overviewsStale = false;
+										if (stale) {
+											m_cache.clear();
+										}
+									}
+								}
+							});
+						}
+					});
+			m_overviews.start(previous);
+		}
 	}
 
 	@Override
@@ -127,8 +321,9 @@ public class GDALRasterLayer extends Layer {
 	@Override
 	public Object getInfoComponent() {
 
+		TileSource source;
 		try {
-			invalidate();
+			source = invalidate();
 		} catch (Exception e) {
 			StringBuilder buf = new StringBuilder();
 			buf.append(tr("Unusable dataset:\n"));
@@ -142,6 +337,31 @@ public class GDALRasterLayer extends Layer {
 		buf.append(tr("Dimensions: {0}x{1}\n", m_srcDataset.getRasterXSize(),
 				m_srcDataset.getRasterYSize()));
 		buf.append(tr("Bands: {0}\n", m_srcDataset.GetRasterCount()));
+		buf.append(tr("Overviews: {0}\n", m_srcDataset.GetRasterBand(1)
+				.GetOverviewCount()));
+		if (m_overviews != null) {
+			switch (m_overviews.getState()) {
+			case BUILDING:
+				buf.append(tr("Building {0} overviews: {1}%\n", m_overviews
+						.getLevelCount(), (int) (m_overviews.getProgress() * 100)));
+				break;
+			case DONE:
+				buf.append(tr("Built {0} overviews in {1} s\n", m_overviews
+						.getLevelCount(), m_overviews.getMillis() / 1000));
+				break;
+			case FAILED:
+				buf.append(tr("Could not build overviews: {0}\n", m_overviews
+						.getError()));
+				break;
+			default:
+				break;
+			}
+		}
+		if (m_watcher != null && m_watcher.getChangeCount() > 0) {
+			buf.append(tr("Reloaded {0} times, last {1} of {2} blocks changed\n",
+					m_watcher.getChangeCount(), m_watcher.getChangedBlocks(),
+					m_watcher.getBlockCount()));
+		}
 		{
 			double[] gt = m_srcDataset.GetGeoTransform();
 			double origin_x = gt[0];
@@ -156,11 +376,21 @@ public class GDALRasterLayer extends Layer {
 			buf.append("\n\n");
 		}
 
+		buf.append(tr("Bands shown: {0}\n", m_bands != null ? BandsAction
+				.format(m_bands) : tr("automatic")));
+		buf.append(tr("Processing: {0}\n", m_pipeline != null ? m_pipeline
+				.getSpec() : tr("none")));
+		buf.append("\n");
+
+		buf.append(tr("GDAL initialized in {0} ms with {1} drivers\n",
+				GDALBootstrap.getMillis(), GDALBootstrap.getDriverCount()));
+		buf.append("\n");
+
 		buf.append(tr("Projected image properties:\n"));
-		buf.append(tr("Dimensions: {0}x{1}\n", m_image.getWidth(), m_image
-				.getHeight()));
-		buf.append(tr("Origin: ({0} ; {1})\n", m_geoTransform[0],
-				m_geoTransform[3]));
+		buf.append(tr("Dimensions: {0}x{1}\n", source.getXSize(), source
+				.getYSize()));
+		buf.append(tr("Origin: ({0} ; {1})\n", source.getGeoTransform()[0],
+				source.getGeoTransform()[3]));
 		buf.append(tr("Display projection:\n"));
 		{
 			String prj = Main.proj.toCode();
@@ -173,6 +403,59 @@ public class GDALRasterLayer extends Layer {
 			}
 		}
 
+		buf.append(tr("Tile cache:\n"));
+		buf.append(tr("Tile size: {0}, levels: {1}\n", source.getTileSize(),
+				source.getMaxLevel() + 1));
+		buf.append(tr("Cached tiles: {0} ({1} of {2} MB)\n", m_cache
+				.getTileCount(), m_cache.getBytes() / (1024 * 1024), m_cache
+				.getMaxBytes()
+				/ (1024 * 1024)));
+		buf.append(tr("Hits: {0}, misses: {1}\n", m_cache.getHits(), m_cache
+				.getMisses()));
+		buf.append(tr("Mean GDAL read time per tile: {0} ms\n", String.format(
+				"%.1f", m_loader.getMeanReadMillis())));
+		CompressedTileCache compressed = m_cache.getCompressed();
+		if (compressed != null) {
+			buf.append(tr("Compressed tiles ({0}): {1} ({2} of {3} MB)\n",
+					compressed.isLossy() ? CompressedTileCache.JPEG
+							: CompressedTileCache.DEFLATE, compressed
+							.getTileCount(), compressed.getBytes()
+							/ (1024 * 1024), compressed.getMaxBytes()
+							/ (1024 * 1024)));
+			buf.append(tr("Compression ratio: {0}, hits: {1}\n", String
+					.format("%.1f", compressed.getCompressionRatio()),
+					compressed.getHits()));
+			buf.append(tr("Mean time per tile: compress {0} ms, decompress {1} ms\n",
+					String.format("%.1f", compressed.getMeanEncodeMillis()),
+					String.format("%.1f", compressed.getMeanDecodeMillis())));
+		}
+		buf.append(tr("Loaded: {0}, prefetched: {1}, dropped: {2}, pending: {3}\n",
+				m_loader.getLoadedCount(), m_loader.getPrefetchedCount(),
+				m_loader.getDroppedCount(), m_loader.getPendingCount()));
+
+		buf.append(tr("GDAL:\n"));
+		long gdalUsed = GDALTuning.getCacheUsed() / (1024 * 1024);
+		long gdalMax = GDALTuning.getCacheMax() / (1024 * 1024);
+		buf.append(tr("Block cache (all layers): {0} of {1} MB used\n",
+				gdalUsed, gdalMax));
+		buf.append(tr("Decoding threads: {0}\n", GDALTuning.getThreads()));
+
+		if (m_remote != null) {
+			buf.append(tr("Remote source:\n"));
+			buf.append(tr("URL: {0}\n", m_remote.getUrl()));
+			buf.append(tr("Cached blocks: {0} of {1}\n", m_remote
+					.getCachedBlocks(), m_remote.getBlockCount()));
+			buf.append(tr("Cache size: {0} MB of {1} MB\n", m_remote
+					.getCachedBytes() / (1024 * 1024), m_remote
+					.getMaxCacheBytes() / (1024 * 1024)));
+			buf.append(tr("Fetched: {0} KB in {1} requests, read by GDAL: {2} KB\n",
+					m_remote.getUpstreamBytes() / 1024, m_remote
+							.getUpstreamRequests(), m_remote.getReadBytes() / 1024));
+			buf.append(tr("Fetched for current view: {0} KB in {1} requests\n",
+					(m_remote.getUpstreamBytes() - m_viewStartBytes) / 1024,
+					m_remote.getUpstreamRequests() - m_viewStartRequests));
+		}
+
 		return buf.toString();
 	}
 
@@ -185,6 +468,10 @@ public class GDALRasterLayer extends Layer {
 		LayerListDialog lld = LayerListDialog.getInstance();
 		return new Action[] { lld.createShowHideLayerAction(),
 				lld.createDeleteLayerAction(), SeparatorLayerAction.INSTANCE,
+				new BandsAction(this), new ProcessingAction(this),
+				new SampleToNodesAction(this),
+				new ExportGeoTiffAction(this),
+				SeparatorLayerAction.INSTANCE,
 				new LayerListPopup.InfoAction(this) };
 	}
 
@@ -193,6 +480,9 @@ public class GDALRasterLayer extends Layer {
 	 */
 	@Override
 	public String getToolTipText() {
+		if (m_remote != null) {
+			return m_remote.getUrl().toString();
+		}
 		return m_sourceFile.getAbsolutePath();
 	}
 
@@ -206,6 +496,57 @@ public class GDALRasterLayer extends Layer {
 	public void mergeFrom(Layer from) {
 	}
 
+	/**
+	 * @return The tile loader, for benchmarks
+	 */
+	TileLoader getTileLoader() {
+		return m_loader;
+	}
+
+	/**
+	 * @return The tile cache, for benchmarks
+	 */
+	TileCache getTileCache() {
+		return m_cache;
+	}
+
+	/**
+	 * Stops loading tiles when the layer is removed
+	 */
+	@Override
+	public void destroy() {
+		if (m_readoutListener != null) {
+			m_readoutView.removeMouseMotionListener(m_readoutListener);
+		}
+		synchronized (m_samplerLock) {
+			if (m_readoutExecutor != null) {
+				m_readoutExecutor.shutdown();
+			}
+			if (m_sampler != null) {
+				m_sampler.dispose();
+				m_sampler = null;
+			}
+		}
+		if (m_overviews != null) {
+			m_overviews.cancel();
+			m_overviews = null;
+		}
+		if (m_watcher != null) {
+			m_watcher.cancel();
+			m_watcher = null;
+		}
+		m_loader.shutdown();
+		m_cache.shutdown();
+		if (m_remote != null) {
+			try {
+				RangeCacheProxy.getInstance().unregister(m_remote);
+			} catch (IOException e) {
+				// Proxy is running, as the layer was opened through it
+			}
+		}
+		super.destroy();
+	}
+
 	private SpatialReference projCodeToSR(String proj) {
 		SpatialReference sr = new SpatialReference();
 
@@ -236,11 +577,13 @@ public class GDALRasterLayer extends Layer {
 	}
 
 	/**
-	 * Reprojects image and updates transformation matrices, if needed. Throws
+	 * Reprojects image and resets the tile cache, if needed. Throws
 	 * NullPointerException if dataset is null Throws ProjectionException if
 	 * current projection is invalid
+	 * 
+	 * @return The tile source for the current projection
 	 */
-	private void invalidate() {
+	private TileSource invalidate() {
 		// Guard against null-pointer
 		if (m_srcDataset == null) {
 			throw new NullPointerException("Dataset is null");
@@ -255,49 +598,553 @@ public class GDALRasterLayer extends Layer {
 		// For now, they seem to use only EPSG codes.
 		String currentProj = Main.proj.toCode();
 
-		// Check if image is there or if the projection has changed
-		if ((m_image == null) || (!m_lastProj.equals(currentProj))) {
-			// Reproject dataset and create image
+		// Check if image is there or if the projection, bands or processing
+		// have changed
+		TileSource source = m_loader.getSource();
+		if ((source == null) || (!source.getProjCode().equals(currentProj))
+				|| source.getPipeline() != m_pipeline
+				|| !Arrays.equals(source.getBands(), m_bands)) {
+			// Tiles are read lazily from the warped dataset. Switch the loader
+			// first, so no tile of the old projection ends up in the cache.
+			source = createTileSource(currentProj);
+			m_loader.setSource(source);
+			m_cache.clear();
+		}
+		return source;
+	}
+
+	/**
+	 * Reprojects the source dataset. Throws NullPointerException and
+	 * ProjectionException like {@link #invalidate()}.
+	 */
+	private TileSource createTileSource(String currentProj) {
+		// Create destination coordinate system from projection code
+		String dstWkt = null;
+		try {
+			dstWkt = projCodeToWkt(currentProj);
+		} catch (RuntimeException e) {
+			throw new ProjectionException("'" + currentProj
+					+ "' is not a valid projection.", currentProj);
+		}
+
+		// Warp just the selected bands or, without a selection, the ones the
+		// processing reads, so the others are never decoded
+		int[] subsetBands = m_bands;
+		if (subsetBands == null && m_pipeline != null) {
+			subsetBands = usedBands(m_pipeline.getUsedBands(getBandCount()));
+		}
+		Dataset subset = null;
+		if (subsetBands != null) {
+			subset = GDALTools.selectBands(m_srcDataset, subsetBands);
+		}
+
+		// Reproject dataset
+		int eResampleAlg = gdalconst.GRA_Cubic;
+		double maxError = 0.2; // Maximum error in source image pixels
+		Dataset projDataset = gdal.AutoCreateWarpedVRT(subset != null ? subset
+				: m_srcDataset, null, dstWkt, eResampleAlg, maxError);
+
+		if (projDataset == null) {
+			if (subset != null) {
+				subset.delete();
+			}
+			// Image has no transformation info and/or no GCPs
+			// Rethrow exception for callers
+			throw new NullPointerException(
+					tr("Source image could not be reprojected. It is probably not properly georeferenced."));
+		}
 
-			// Create destination coordinate system from projection code
-			String dstWkt = null;
+		int tileSize = Main.pref.getInteger("geotiffovl.tilesize", 256);
+		return new TileSource(projDataset, currentProj, tileSize, m_pipeline,
+				m_bands, m_srcDataset, subset, subsetBands);
+	}
+
+	/**
+	 * @return The 1-based numbers of the used bands, null if all are used
+	 */
+	private static int[] usedBands(boolean[] used) {
+		int count = 0;
+		for (boolean u : used) {
+			count += u ? 1 : 0;
+		}
+		if (count == used.length || count == 0) {
+			return null;
+		}
+		int[] bands = new int[count];
+		for (int b = 0, i = 0; b < used.length; b++) {
+			if (used[b]) {
+				bands[i++] = b + 1;
+			}
+		}
+		return bands;
+	}
+
+	/**
+	 * Reopens the source file, so that GDAL sees the overviews built since it
+	 * was opened or the changes made to it
+	 * 
+	 * @param previous
+	 *            Tile source to replace, null if there is none
+	 * @param keepScaling
+	 *            True to scale new tiles like the cached ones, which is the
+	 *            case unless the cache is cleared
+	 * @return False if the file could not be opened, the current dataset is
+	 *         kept then
+	 */
+	private boolean reopenSource(TileSource previous, boolean keepScaling) {
+		Dataset reopened = openSource();
+		if (reopened == null) {
+			return false;
+		}
+		replaceSource(reopened, previous, keepScaling);
+		return true;
+	}
+
+	/**
+	 * @return New handle of the source file, null if it cannot be opened
+	 */
+	private Dataset openSource() {
+		Dataset reopened = gdal.Open(m_sourceFile.getAbsolutePath(),
+				gdalconst.GA_ReadOnly);
+		if (reopened == null) {
+			GDALTools.printLastError();
+		}
+		return reopened;
+	}
+
+	/**
+	 * Switches to a new handle of the source file and replaces the tile
+	 * source
+	 * 
+	 * @param reopened
+	 *            New handle, may already be the current one
+	 * @param previous
+	 *            Tile source to replace, null if there is none
+	 * @param keepScaling
+	 *            True to scale new tiles like the cached ones
+	 */
+	private void replaceSource(Dataset reopened, TileSource previous,
+			boolean keepScaling) {
+		Dataset old;
+		synchronized (m_samplerLock) {
+			old = m_srcDataset != reopened ? m_srcDataset : null;
+			m_srcDataset = reopened;
+			// The sampler has its own handle of the old file
+			if (old != null && m_sampler != null) {
+				m_sampler.dispose();
+				m_sampler = null;
+			}
+		}
+		if (previous != null) {
 			try {
-				dstWkt = projCodeToWkt(currentProj);
+				TileSource reopenedSource = createTileSource(previous
+						.getProjCode());
+				if (keepScaling) {
+					reopenedSource.keepScalingOf(previous);
+				}
+				m_loader.setSource(reopenedSource);
 			} catch (RuntimeException e) {
-				throw new ProjectionException("'" + currentProj
-						+ "' is not a valid projection.", currentProj);
+				// Projection has changed since, the next paint takes care
+				m_loader.setSource(null);
 			}
+		}
+		// The old warped dataset refers to the old source dataset
+		if (old != null) {
+			m_loader.dispose(old);
+		}
+		if (Main.map != null && Main.map.mapView != null) {
+			Main.map.mapView.repaint();
+		}
+	}
 
-			// Reproject dataset
-			int eResampleAlg = gdalconst.GRA_Cubic;
-			double maxError = 0.2; // Maximum error in source image pixels
-			Dataset projDataset = gdal.AutoCreateWarpedVRT(m_srcDataset, null,
-					dstWkt, eResampleAlg, maxError);
-
-			if (projDataset == null) {
-				// Image has no transformation info and/or no GCPs
-				// Rethrow exception for callers
-				throw new NullPointerException(
-						tr("Source image could not be reprojected. It is probably not properly georeferenced."));
+	/**
+	 * Reopens the source file after it changed on disk and discards the
+	 * cached tiles that show changed parts of it. If the file cannot be
+	 * opened, e.g. while it is still being written, the layer keeps showing
+	 * the old version.
+	 * 
+	 * @param regions
+	 *            Changed regions in source pixels, null if everything changed
+	 */
+	void reloadSource(List<Rectangle> regions) {
+		Dataset reopened = openSource();
+		if (reopened == null) {
+			return;
+		}
+
+		// Overviews built by this layer show the old image, build them anew
+		// once the current build, if any, has stopped
+		TileSource previous = m_loader.getSource();
+		List<EastNorth> bounds = null;
+		if (previous != null && regions != null) {
+			bounds = toProjected(regions, previous.getProjCode());
+		}
+		OverviewBuilder builder = m_overviews;
+		m_overviews = null;
+		if (builder != null) {
+			builder.cancel();
+			if (builder.getState() == OverviewBuilder.State.DONE
+					&& !deleteOverviews(reopened)) {
+				// Zoomed out tiles would show the old image until the
+				// overviews are rebuilt
+				m_overviewsStale = true;
+				bounds = null;
 			}
+		}
 
-			// Current geo transform
-			m_geoTransform = projDataset.GetGeoTransform();
-			// Convert dataset to drawable image
-			m_image = GDALTools.datasetToImage(projDataset, false);
-			// Don't convert again next time
-			m_lastProj = currentProj;
+		// Keep the tiles of unchanged parts, and their scaling. New tiles of
+		// changed parts are scaled alike, even if their values left the range.
+		replaceSource(reopened, previous, bounds != null);
+		TileSource source = m_loader.getSource();
+		if (source != null && bounds != null) {
+			for (int i = 0; i < bounds.size(); i += 2) {
+				m_cache.remove(source.getTilesTouching(bounds.get(i), bounds
+						.get(i + 1)));
+			}
+		} else {
+			m_cache.clear();
+		}
+		startOverviews(builder);
+		if (Main.map != null && Main.map.mapView != null) {
+			Main.map.mapView.repaint();
 		}
 	}
 
+	/**
+	 * Deletes the overviews built by this layer. GDAL keeps them open in the
+	 * source, the warped datasets and the sampler, and open files cannot be
+	 * deleted on every system, so all of those are closed first. The layer
+	 * switches to a new handle of the file, which has not looked for
+	 * overviews yet, so there always is an open dataset.
+	 * 
+	 * @param reopened
+	 *            New handle of the source file to switch to
+	 * @return False if the overviews are still there
+	 */
+	private boolean deleteOverviews(Dataset reopened) {
+		Dataset old;
+		synchronized (m_samplerLock) {
+			old = m_srcDataset;
+			m_srcDataset = reopened;
+			if (m_sampler != null) {
+				m_sampler.dispose();
+				m_sampler = null;
+			}
+		}
+		m_loader.release(old);
+
+		File ovr = new File(m_sourceFile.getPath() + ".ovr");
+		if (!ovr.delete() && ovr.exists()) {
+			System.err.println("Could not delete outdated overviews " + ovr);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Converts regions of the source image to bounding boxes in a
+	 * projection, enlarged by the reach of the resampling
+	 * 
+	 * @return Lower left and upper right corner of every region, null if the
+	 *         source is only georeferenced by control points
+	 */
+	private List<EastNorth> toProjected(List<Rectangle> regions,
+			String projCode) {
+		if (m_srcDataset.GetGCPCount() > 0) {
+			return null;
+		}
+		double[] gt = m_srcDataset.GetGeoTransform();
+		SpatialReference srcSR = new SpatialReference(m_srcDataset
+				.GetProjectionRef());
+		SpatialReference dstSR = projCodeToSR(projCode);
+		CoordinateTransformation ct = srcSR.IsSame(dstSR) != 0 ? null
+				: new CoordinateTransformation(srcSR, dstSR);
+
+		List<EastNorth> bounds = new ArrayList<EastNorth>();
+		for (Rectangle r : regions) {
+			// Follow the edges, which are curved in the projection
+			double x0 = r.x - RESAMPLING_RADIUS;
+			double y0 = r.y - RESAMPLING_RADIUS;
+			double w = r.width + 2 * RESAMPLING_RADIUS;
+			double h = r.height + 2 * RESAMPLING_RADIUS;
+			double[][] points = new double[4 * EDGE_POINTS][];
+			for (int i = 0; i < EDGE_POINTS; i++) {
+				double t = (double) i / EDGE_POINTS;
+				points[4 * i] = toGeo(x0 + t * w, y0, gt);
+				points[4 * i + 1] = toGeo(x0 + w, y0 + t * h, gt);
+				points[4 * i + 2] = toGeo(x0 + w - t * w, y0 + h, gt);
+				points[4 * i + 3] = toGeo(x0, y0 + h - t * h, gt);
+			}
+			if (ct != null) {
+				ct.TransformPoints(points);
+			}
+			double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+			for (double[] p : points) {
+				minX = Math.min(minX, p[0]);
+				minY = Math.min(minY, p[1]);
+				maxX = Math.max(maxX, p[0]);
+				maxY = Math.max(maxY, p[1]);
+			}
+			bounds.add(new EastNorth(minX, minY));
+			bounds.add(new EastNorth(maxX, maxY));
+		}
+		return bounds;
+	}
+
+	private static double[] toGeo(double x, double y, double[] gt) {
+		Point2D p = GDALTools.applyGeoTransform(x, y, gt);
+		return new double[] { p.getX(), p.getY(), 0 };
+	}
+
 	@Override
 	public void paint(Graphics2D g, MapView mv, Bounds box) {
+		paint(g, new TileViewport.OfMapView(mv));
 
-		// Save old graphics transformation
-		AffineTransform oldGraphicsTransform = g.getTransform();
+		if (m_readoutListener == null
+				&& Main.pref.getBoolean("geotiffovl.readout", true)) {
+			installReadout(mv);
+		}
+		if (m_readoutText != null) {
+			g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 12));
+			int y = mv.getHeight() - 8;
+			g.setColor(Color.black);
+			g.drawString(m_readoutText, 9, y + 1);
+			g.setColor(Color.white);
+			g.drawString(m_readoutText, 8, y);
+		}
+	}
+
+	/**
+	 * Starts showing the values under the mouse cursor. Values are sampled in
+	 * the background, as reading them may block, e.g. on a remote image, and
+	 * shown by repainting the map view when they arrive.
+	 */
+	private void installReadout(final MapView mv) {
+		m_readoutView = mv;
+		m_readoutExecutor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "geotiffovl-readout");
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+		final Runnable sampling = new Runnable() {
+			public void run() {
+				EastNorth p;
+				String text = null;
+				boolean done = false;
+				try {
+					do {
+						p = m_readoutPoint.get();
+						text = readout(p);
+					} while (!m_readoutPoint.compareAndSet(p, null));
+					done = true;
+				} finally {
+					if (!done) {
+						// Let the next mouse move start sampling again
+						m_readoutPoint.set(null);
+					}
+				}
+				showReadout(text);
+			}
+		};
+		m_readoutListener = new MouseMotionAdapter() {
+			@Override
+			public void mouseMoved(MouseEvent e) {
+				if (!isVisible()) {
+					setReadoutText(null);
+					return;
+				}
+				// Only start sampling if no sampling is pending, which picks
+				// up the latest position when done
+				if (m_readoutPoint.getAndSet(mv.getEastNorth(e.getX(), e
+						.getY())) == null) {
+					try {
+						m_readoutExecutor.execute(sampling);
+					} catch (RejectedExecutionException ex) {
+						// Layer has been removed
+					}
+				}
+			}
+		};
+		mv.addMouseMotionListener(m_readoutListener);
+	}
+
+	private void showReadout(final String text) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				setReadoutText(text);
+			}
+		});
+	}
+
+	private void setReadoutText(String text) {
+		if (text == null ? m_readoutText != null : !text
+				.equals(m_readoutText)) {
+			m_readoutText = text;
+			m_readoutView.repaint();
+		}
+	}
+
+	/**
+	 * Samples the values at a point, called on the readout thread
+	 * 
+	 * @return Raster values at a point as text, null if outside the image or
+	 *         the layer has been removed
+	 */
+	private String readout(EastNorth p) {
+		double[][] values;
+		int count;
+		synchronized (m_samplerLock) {
+			if (m_readoutExecutor.isShutdown()) {
+				return null;
+			}
+			try {
+				RasterSampler sampler = getSampler();
+				count = Math.min(sampler.getBandCount(), 4);
+				int[] bands = new int[count];
+				for (int i = 0; i < count; i++) {
+					bands[i] = i + 1;
+				}
+				values = sampler.sample(new double[] { p.east() },
+						new double[] { p.north() }, bands);
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (Double.isNaN(values[i][0])) {
+				return null;
+			}
+			buf.append(i == 0 ? "" : ", ");
+			buf.append(RasterSampler.formatValue(values[i][0]));
+		}
+		return tr("{0}: {1}", m_name, buf.toString());
+	}
+
+	/**
+	 * Samples a band of the source image at native resolution
+	 * 
+	 * @param points
+	 *            Points in the current projection
+	 * @param band
+	 *            Band to sample, 1-based
+	 * @return Values in the order of the points, NaN for points outside the
+	 *         image or without data
+	 */
+	public double[] sample(List<EastNorth> points, int band) {
+		double[] xs = new double[points.size()];
+		double[] ys = new double[points.size()];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = points.get(i).east();
+			ys[i] = points.get(i).north();
+		}
+		synchronized (m_samplerLock) {
+			return getSampler().sample(xs, ys, new int[] { band })[0];
+		}
+	}
 
+	/**
+	 * @return Number of bands of the source image
+	 */
+	public int getBandCount() {
+		return m_srcDataset.getRasterCount();
+	}
+
+	/**
+	 * @return Bands shown, 1-based, null if picked automatically
+	 */
+	public int[] getBands() {
+		return m_bands != null ? m_bands.clone() : null;
+	}
+
+	/**
+	 * Changes the bands shown. Cached tiles are discarded and the tiles are
+	 * read again on the next paint. The bands are also what the processing
+	 * gets, see {@link #getProcessedBandCount()}.
+	 * 
+	 * @param bands
+	 *            1 to 4 bands, 1-based, see
+	 *            {@link PixelConverter#PixelConverter(Dataset, int[])}. Null
+	 *            to pick them automatically.
+	 */
+	public void setBands(int[] bands) {
+		m_bands = bands != null ? bands.clone() : null;
+	}
+
+	/**
+	 * @return Number of bands the processing gets: the bands shown if chosen,
+	 *         otherwise all bands of the source
+	 */
+	public int getProcessedBandCount() {
+		return m_bands != null ? m_bands.length : getBandCount();
+	}
+
+	/**
+	 * @return Processing applied to every tile, null for none
+	 */
+	public TilePipeline getPipeline() {
+		return m_pipeline;
+	}
+
+	/**
+	 * Changes the processing of the tiles. Cached tiles are discarded and
+	 * the tiles are read again on the next paint.
+	 * 
+	 * @param pipeline
+	 *            The new processing, null or empty for none
+	 */
+	public void setPipeline(TilePipeline pipeline) {
+		m_pipeline = pipeline != null && !pipeline.isEmpty() ? pipeline
+				: null;
+	}
+
+	/**
+	 * Creates an exporter of the shown bands of the source image in the
+	 * current projection
+	 * 
+	 * @throws IOException
+	 *             If the source cannot be opened or reprojected
+	 */
+	public GeoTiffExporter createExporter() throws IOException {
+		return new GeoTiffExporter(m_srcDataset.GetDescription(),
+				projCodeToWkt(Main.proj.toCode()), m_bands);
+	}
+
+	/**
+	 * Must be called with m_samplerLock held
+	 */
+	private RasterSampler getSampler() {
+		String currentProj = Main.proj.toCode();
+		if (m_sampler == null || !currentProj.equals(m_samplerProj)) {
+			if (m_sampler != null) {
+				m_sampler.dispose();
+				m_sampler = null;
+			}
+			m_sampler = new RasterSampler(m_srcDataset,
+					projCodeToSR(currentProj));
+			m_samplerProj = currentProj;
+		}
+		return m_sampler;
+	}
+
+	/**
+	 * Paints the visible tiles and requests missing ones
+	 * 
+	 * @param g
+	 *            Graphics to paint on, in screen coordinates of the viewport
+	 * @param mv
+	 *            The viewport
+	 */
+	public void paint(Graphics2D g, TileViewport mv) {
+
+		TileSource source;
 		try {
-			invalidate();
+			source = invalidate();
 		} catch (NullPointerException e) {
 			// Just display a big red error text
 			g.setColor(Color.red);
@@ -316,64 +1163,84 @@ public class GDALRasterLayer extends Layer {
 			return;
 		}
 
-		// The image transformation follows the formula:
-		// sx * xi + tx = xs
-		// sy * yi + ty = ys
-		// where sx, sy are the scale values in x- and y-direction,
-		// xi, yi are the pixel positions
-		// tx, ty are the translation values
-		// and xs, ys the resulting position on the screen
-
-		// Translation is determined by setting (sx,sy) = (0,0) and (xs,ys) =
-		// (projected screen coordinate for upper left image corner) and solving
-		// for (tx,ty).
-
-		// Scaling is determined by solving for (sx,sy) with xi=imwidth-1 and
-		// xs=(projected screen coordinate for upper right image corner)
-		// and the same in y-direction.
-
-		AffineTransform dspTransform = new AffineTransform();
-
-		// Image point (0,0), geographically projected
-		Point2D geoOrigin = GDALTools.applyGeoTransform(0, 0, m_geoTransform);
-
-		// Map origin to screen coordinates
-		Point2D geoOriginScreenPos = mv.getPoint2D(new EastNorth(geoOrigin
-				.getX(), geoOrigin.getY()));
-
-		// Translate image so that image origin lies at the projected screen
-		// coordinates
-		double tx = geoOriginScreenPos.getX();
-		double ty = geoOriginScreenPos.getY();
-		dspTransform.translate(tx, ty);
-
-		// Determine scaling
-
-		// Upper right corner of image, geographically projected
-		Point2D geoUpperRight = GDALTools.applyGeoTransform(
-				m_image.getWidth() - 1, 0, m_geoTransform);
-		Point2D geoUpperRightScreenPos = mv.getPoint2D(new EastNorth(
-				geoUpperRight.getX(), geoUpperRight.getY()));
+		// Pick the pyramid level matching the zoom and determine the tiles
+		// covering the view
+		int level = source.levelForScale(mv.getScale());
+		EastNorth topLeft = mv.getEastNorth(0, 0);
+		EastNorth bottomRight = mv.getEastNorth(mv.getWidth(), mv.getHeight());
+		Rectangle visible = source.getTileRange(level, topLeft, bottomRight);
+
+		if (level != m_lastLevel || !visible.equals(m_lastVisible)) {
+			m_lastLevel = level;
+			m_lastVisible = visible;
+			if (m_remote != null) {
+				m_viewStartBytes = m_remote.getUpstreamBytes();
+				m_viewStartRequests = m_remote.getUpstreamRequests();
+			}
+		}
 
-		// Bottom right corner of image, geographically projected
-		Point2D geoBottomRight = GDALTools
-				.applyGeoTransform(m_image.getWidth() - 1,
-						m_image.getHeight() - 1, m_geoTransform);
-		Point2D geoBottomRightScreenPos = mv.getPoint2D(new EastNorth(
-				geoBottomRight.getX(), geoBottomRight.getY()));
+		m_loader.beginFrame();
+		for (int row = visible.y; row < visible.y + visible.height; row++) {
+			for (int col = visible.x; col < visible.x + visible.width; col++) {
+				TileKey key = new TileKey(level, col, row);
+				BufferedImage img = m_cache.get(key);
+				if (img != null) {
+					drawTile(g, mv, source, key, img, 0, 0, img.getWidth(), img
+							.getHeight());
+				} else {
+					m_loader.request(key, TileLoader.PRIORITY_VISIBLE);
+					drawFallback(g, mv, source, key);
+				}
+			}
+		}
 
-		double sx = (geoUpperRightScreenPos.getX() - geoOriginScreenPos.getX())
-				/ (m_image.getWidth() - 1);
-		double sy = (geoBottomRightScreenPos.getY() - geoUpperRightScreenPos
-				.getY())
-				/ (m_image.getHeight() - 1);
+		if (m_planner != null) {
+			m_planner.addSample(mv.getCenter(), mv.getScale());
+			m_planner.plan(source, level, visible, m_loader);
+		}
+	}
 
-		dspTransform.scale(sx, sy);
-		g.setTransform(dspTransform);
-		g.drawImage(m_image, 0, 0, null);
+	/**
+	 * Fills the area of a missing tile with the matching part of a cached tile
+	 * of a coarser level, if there is one
+	 */
+	private void drawFallback(Graphics2D g, TileViewport mv,
+			TileSource source, TileKey key) {
+		Rectangle window = source.getPixelWindow(key);
+		TileKey ancestor = key.getParent();
+		while (ancestor.getLevel() <= source.getMaxLevel()) {
+			BufferedImage img = m_cache.peek(ancestor);
+			if (img != null) {
+				// Map the tile's window into the pixels of the coarser tile
+				Rectangle aw = source.getPixelWindow(ancestor);
+				double fx = (double) img.getWidth() / aw.width;
+				double fy = (double) img.getHeight() / aw.height;
+				int sx1 = (int) Math.floor((window.x - aw.x) * fx);
+				int sy1 = (int) Math.floor((window.y - aw.y) * fy);
+				int sx2 = (int) Math.ceil((window.x + window.width - aw.x) * fx);
+				int sy2 = (int) Math.ceil((window.y + window.height - aw.y)
+						* fy);
+				drawTile(g, mv, source, key, img, sx1, sy1, sx2, sy2);
+				return;
+			}
+			ancestor = ancestor.getParent();
+		}
+	}
 
-		// Restore painter transformation for other layers
-		g.setTransform(oldGraphicsTransform);
+	/**
+	 * Draws a part of an image into the screen area of a tile
+	 */
+	private void drawTile(Graphics2D g, TileViewport mv, TileSource source,
+			TileKey key, BufferedImage img, int sx1, int sy1, int sx2, int sy2) {
+		// Round the corners instead of the sizes, so adjacent tiles share
+		// their edges exactly
+		Point2D origin = mv.getPoint2D(source.getTileOrigin(key));
+		Point2D end = mv.getPoint2D(source.getTileEnd(key));
+		int dx1 = (int) Math.round(origin.getX());
+		int dy1 = (int) Math.round(origin.getY());
+		int dx2 = (int) Math.round(end.getX());
+		int dy2 = (int) Math.round(end.getY());
+		g.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null);
 	}
 
 	/**
@@ -383,10 +1250,11 @@ public class GDALRasterLayer extends Layer {
 	public void visitBoundingBox(BoundingXYVisitor v) {
 
 		try {
-			Point2D geoUpperLeft = GDALTools.applyGeoTransform(0, 0,
-					m_geoTransform);
-			Point2D geoBottomRight = GDALTools.applyGeoTransform(m_image
-					.getWidth() - 1, m_image.getHeight() - 1, m_geoTransform);
+			TileSource source = invalidate();
+			Point2D geoUpperLeft = GDALTools.applyGeoTransform(0, 0, source
+					.getGeoTransform());
+			Point2D geoBottomRight = GDALTools.applyGeoTransform(source
+					.getXSize(), source.getYSize(), source.getGeoTransform());
 
 			ProjectionBounds bounds = new ProjectionBounds(
 					toEastNorth(geoUpperLeft));
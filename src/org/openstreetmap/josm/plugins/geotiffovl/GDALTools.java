@@ -42,21 +42,8 @@ That code was licensed under an MIT/X style license with the following terms:
 
 package org.openstreetmap.josm.plugins.geotiffovl;
 
-import java.awt.color.ColorSpace;
 import java.awt.geom.Point2D;
-import java.awt.image.BandedSampleModel;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.ComponentColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.DataBufferInt;
-import java.awt.image.DataBufferShort;
-import java.awt.image.Raster;
-import java.awt.image.SampleModel;
-import java.awt.image.WritableRaster;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -119,6 +106,27 @@ public class GDALTools {
 		return applyInvGeoTransform(Pgeo.getX(), Pgeo.getY(), gt);
 	}
 
+	/**
+	 * Inverts GeoTransform coefficients, so that applyGeoTransform with the
+	 * result converts projected coordinates to pixel positions. Cheaper than
+	 * applyInvGeoTransform when converting many points.
+	 * 
+	 * @param gt
+	 *            GeoTransform coefficients of length 6
+	 * @return Inverse coefficients of length 6
+	 */
+	public static double[] invertGeoTransform(double[] gt) {
+		double det = gt[1] * gt[5] - gt[2] * gt[4];
+		double[] inv = new double[6];
+		inv[1] = gt[5] / det;
+		inv[2] = -gt[2] / det;
+		inv[4] = -gt[4] / det;
+		inv[5] = gt[1] / det;
+		inv[0] = -(inv[1] * gt[0] + inv[2] * gt[3]);
+		inv[3] = -(inv[4] * gt[0] + inv[5] * gt[3]);
+		return inv;
+	}
+
 	public static void main(final String[] args) {
 		System.out.println("Hello!");
 
@@ -137,223 +145,202 @@ public class GDALTools {
 
 	public static BufferedImage datasetToImage(Dataset poDataset,
 			boolean printDebug) {
+		int xsize = poDataset.getRasterXSize();
+		int ysize = poDataset.getRasterYSize();
+		return datasetToImage(poDataset, 0, 0, xsize, ysize, xsize, ysize,
+				printDebug);
+	}
 
-		double[] adfGeoTransform = new double[6];
+	/**
+	 * Reads a window of a dataset into an image
+	 * 
+	 * If the buffer is smaller than the window, GDAL decimates the data and
+	 * uses overviews of the dataset where available. The image is always
+	 * packed ARGB or RGB, see {@link PixelConverter}. When reading more than
+	 * one window of a dataset, reuse a PixelConverter instead.
+	 * 
+	 * @param poDataset
+	 *            Dataset to read from
+	 * @param xoff
+	 *            Left edge of the window in dataset pixels
+	 * @param yoff
+	 *            Top edge of the window in dataset pixels
+	 * @param xsize
+	 *            Width of the window in dataset pixels
+	 * @param ysize
+	 *            Height of the window in dataset pixels
+	 * @param bufXSize
+	 *            Width of the resulting image
+	 * @param bufYSize
+	 *            Height of the resulting image
+	 * @param printDebug
+	 *            Dump dataset information to stdout
+	 * @return The image, or null if the raster data could not be read
+	 */
+	public static BufferedImage datasetToImage(Dataset poDataset, int xoff,
+			int yoff, int xsize, int ysize, int bufXSize, int bufYSize,
+			boolean printDebug) {
 
 		if (printDebug) {
-			System.out.println("Driver: "
-					+ poDataset.GetDriver().GetDescription());
+			printDatasetInfo(poDataset);
+		}
 
-			System.out.println("Size is: " + poDataset.getRasterXSize() + "x"
-					+ poDataset.getRasterYSize() + "  bands:"
-					+ poDataset.getRasterCount());
+		return new PixelConverter(poDataset).read(poDataset, xoff, yoff,
+				xsize, ysize, bufXSize, bufYSize);
+	}
 
-			if (poDataset.GetProjectionRef() != null)
-				System.out.println("Projection is `"
-						+ poDataset.GetProjectionRef() + "'");
-		}
+	/**
+	 * Dumps driver, size, metadata, GCPs, geotransform and bands of a dataset
+	 * to stdout
+	 */
+	public static void printDatasetInfo(Dataset poDataset) {
+		double[] adfGeoTransform = new double[6];
+
+		System.out.println("Driver: " + poDataset.GetDriver().GetDescription());
+
+		System.out.println("Size is: " + poDataset.getRasterXSize() + "x"
+				+ poDataset.getRasterYSize() + "  bands:"
+				+ poDataset.getRasterCount());
+
+		if (poDataset.GetProjectionRef() != null)
+			System.out.println("Projection is `"
+					+ poDataset.GetProjectionRef() + "'");
 
 		Hashtable dict = poDataset.GetMetadata_Dict("");
 		Enumeration keys = dict.keys();
-		if (printDebug) {
-			System.out.println(dict.size()
-					+ " items of metadata found (via Hashtable dict):");
-			while (keys.hasMoreElements()) {
-				String key = (String) keys.nextElement();
-				System.out.println(" :" + key + ":==:" + dict.get(key) + ":");
-			}
+		System.out.println(dict.size()
+				+ " items of metadata found (via Hashtable dict):");
+		while (keys.hasMoreElements()) {
+			String key = (String) keys.nextElement();
+			System.out.println(" :" + key + ":==:" + dict.get(key) + ":");
 		}
 
 		Vector list = poDataset.GetMetadata_List("");
 		Enumeration enumerate = list.elements();
-		if (printDebug) {
-			System.out.println(list.size()
-					+ " items of metadata found (via Vector list):");
-			while (enumerate.hasMoreElements()) {
-				String s = (String) enumerate.nextElement();
-				System.out.println(" " + s);
-			}
+		System.out.println(list.size()
+				+ " items of metadata found (via Vector list):");
+		while (enumerate.hasMoreElements()) {
+			String s = (String) enumerate.nextElement();
+			System.out.println(" " + s);
 		}
 
 		Vector GCPs = new Vector();
 		poDataset.GetGCPs(GCPs);
-		if (printDebug) {
-			System.out.println("Got " + GCPs.size() + " GCPs");
-			Enumeration e = GCPs.elements();
-			while (e.hasMoreElements()) {
-				GCP gcp = (GCP) e.nextElement();
-				System.out.println(" x:" + gcp.getGCPX() + " y:"
-						+ gcp.getGCPY() + " z:" + gcp.getGCPZ() + " pixel:"
-						+ gcp.getGCPPixel() + " line:" + gcp.getGCPLine()
-						+ " line:" + gcp.getInfo());
-			}
+		System.out.println("Got " + GCPs.size() + " GCPs");
+		Enumeration e = GCPs.elements();
+		while (e.hasMoreElements()) {
+			GCP gcp = (GCP) e.nextElement();
+			System.out.println(" x:" + gcp.getGCPX() + " y:" + gcp.getGCPY()
+					+ " z:" + gcp.getGCPZ() + " pixel:" + gcp.getGCPPixel()
+					+ " line:" + gcp.getGCPLine() + " line:" + gcp.getInfo());
 		}
 
 		poDataset.GetGeoTransform(adfGeoTransform);
+		System.out.println("Origin = (" + adfGeoTransform[0] + ", "
+				+ adfGeoTransform[3] + ")");
+		System.out.println("Pixel Size = (" + adfGeoTransform[1] + ", "
+				+ adfGeoTransform[5] + ")");
 
-		if (printDebug) {
-			System.out.println("Origin = (" + adfGeoTransform[0] + ", "
-					+ adfGeoTransform[3] + ")");
-
-			System.out.println("Pixel Size = (" + adfGeoTransform[1] + ", "
-					+ adfGeoTransform[5] + ")");
-		}
-
-		Band poBand = null;
-		// double[] adfMinMax = new double[2];
 		Double[] max = new Double[1];
 		Double[] min = new Double[1];
-
-		int bandCount = poDataset.getRasterCount();
-		ByteBuffer[] bands = new ByteBuffer[bandCount];
-		int[] banks = new int[bandCount];
-		int[] offsets = new int[bandCount];
-
-		int xsize = poDataset.getRasterXSize();
-		int ysize = poDataset.getRasterYSize();
-		int pixels = xsize * ysize;
-		int buf_type = 0, buf_size = 0;
-
-		for (int band = 0; band < bandCount; band++) {
+		for (int band = 0; band < poDataset.getRasterCount(); band++) {
 			/* Bands are not 0-base indexed, so we must add 1 */
-			poBand = poDataset.GetRasterBand(band + 1);
-
-			buf_type = poBand.getDataType();
-			buf_size = pixels * gdal.GetDataTypeSize(buf_type) / 8;
-
-			if (printDebug) {
-				System.out.println(" Data Type = "
-						+ gdal.GetDataTypeName(poBand.getDataType()));
-				System.out.println(" ColorInterp = "
-						+ gdal.GetColorInterpretationName(poBand
-								.GetRasterColorInterpretation()));
-				System.out.println("Band size is: " + poBand.getXSize() + "x"
-						+ poBand.getYSize());
-			}
+			Band poBand = poDataset.GetRasterBand(band + 1);
+
+			System.out.println(" Data Type = "
+					+ gdal.GetDataTypeName(poBand.getDataType()));
+			System.out.println(" ColorInterp = "
+					+ gdal.GetColorInterpretationName(poBand
+							.GetRasterColorInterpretation()));
+			System.out.println("Band size is: " + poBand.getXSize() + "x"
+					+ poBand.getYSize());
 
 			poBand.GetMinimum(min);
 			poBand.GetMaximum(max);
-			if (printDebug) {
-				if (min[0] != null || max[0] != null) {
-					System.out.println("  Min=" + min[0] + " Max=" + max[0]);
-				} else {
-					System.out.println("  No Min/Max values stored in raster.");
-				}
+			if (min[0] != null || max[0] != null) {
+				System.out.println("  Min=" + min[0] + " Max=" + max[0]);
+			} else {
+				System.out.println("  No Min/Max values stored in raster.");
 			}
 
-			if (printDebug) {
-				if (poBand.GetOverviewCount() > 0) {
-					System.out.println("Band has " + poBand.GetOverviewCount()
-							+ " overviews.");
-				}
+			if (poBand.GetOverviewCount() > 0) {
+				System.out.println("Band has " + poBand.GetOverviewCount()
+						+ " overviews.");
 			}
 
-			if (printDebug) {
-				if (poBand.GetRasterColorTable() != null) {
-					System.out.println("Band has a color table with "
-							+ poBand.GetRasterColorTable().GetCount()
-							+ " entries.");
-					for (int i = 0; i < poBand.GetRasterColorTable().GetCount(); i++) {
-						System.out
-								.println(" "
-										+ i
-										+ ": "
-										+ poBand.GetRasterColorTable()
-												.GetColorEntry(i));
-					}
+			if (poBand.GetRasterColorTable() != null) {
+				System.out.println("Band has a color table with "
+						+ poBand.GetRasterColorTable().GetCount()
+						+ " entries.");
+				for (int i = 0; i < poBand.GetRasterColorTable().GetCount(); i++) {
+					System.out.println(" " + i + ": "
+							+ poBand.GetRasterColorTable().GetColorEntry(i));
 				}
 			}
+		}
+	}
 
-			if (printDebug) {
-				System.out
-						.println("Allocating ByteBuffer of size: " + buf_size);
-			}
-
-			ByteBuffer data = ByteBuffer.allocateDirect(buf_size);
-			data.order(ByteOrder.nativeOrder());
-
-			int returnVal = 0;
-			try {
-				returnVal = poBand.ReadRaster_Direct(0, 0, poBand.getXSize(),
-						poBand.getYSize(), xsize, ysize, buf_type, data);
-			} catch (Exception ex) {
-				System.err.println("Could not read raster data.");
-				System.err.println(ex.getMessage());
-				ex.printStackTrace();
-				return null;
-			}
-			if (returnVal == gdalconstConstants.CE_None) {
-				bands[band] = data;
-			} else {
-				printLastError();
-			}
-			banks[band] = band;
-			offsets[band] = 0;
+	/**
+	 * Creates an in-memory VRT with only some bands of a dataset, so that
+	 * datasets built on top of it, e.g. a warped VRT, never decode the other
+	 * bands. Georeferencing, no data values, colour interpretation and colour
+	 * tables are kept.
+	 *
+	 * @param poDataset
+	 *            Dataset opened from a file or URL, its description must be
+	 *            the name to open it by
+	 * @param bands
+	 *            Bands to keep in order, 1-based
+	 * @return The VRT, or null if GDAL could not create it
+	 */
+	public static Dataset selectBands(Dataset poDataset, int[] bands) {
+		Dataset vrt = gdal.GetDriverByName("VRT").Create("",
+				poDataset.getRasterXSize(), poDataset.getRasterYSize(), 0,
+				gdalconstConstants.GDT_Byte);
+		if (vrt == null) {
+			printLastError();
+			return null;
 		}
 
-		DataBuffer imgBuffer = null;
-		SampleModel sampleModel = null;
-		int data_type = 0, buffer_type = 0;
+		if (poDataset.GetGCPCount() > 0) {
+			Vector<GCP> gcps = new Vector<GCP>();
+			poDataset.GetGCPs(gcps);
+			vrt.SetGCPs(gcps.toArray(new GCP[gcps.size()]), poDataset
+					.GetGCPProjection());
+		} else {
+			vrt.SetGeoTransform(poDataset.GetGeoTransform());
+			vrt.SetProjection(poDataset.GetProjectionRef());
+		}
 
-		if (buf_type == gdalconstConstants.GDT_Byte) {
-			byte[][] bytes = new byte[bandCount][];
-			for (int i = 0; i < bandCount; i++) {
-				bytes[i] = new byte[pixels];
-				bands[i].get(bytes[i]);
+		String source = escapeXml(poDataset.GetDescription());
+		Double[] noData = new Double[1];
+		for (int i = 0; i < bands.length; i++) {
+			Band src = poDataset.GetRasterBand(bands[i]);
+			vrt.AddBand(src.getDataType());
+			Band dst = vrt.GetRasterBand(i + 1);
+			// Not shared, so that a reopened file is not read through the
+			// handle of a VRT made before it changed
+			dst.SetMetadataItem("source_0", "<SimpleSource>"
+					+ "<SourceFilename relativeToVRT=\"0\" shared=\"0\">"
+					+ source
+					+ "</SourceFilename><SourceBand>" + bands[i]
+					+ "</SourceBand></SimpleSource>", "new_vrt_sources");
+			dst.SetRasterColorInterpretation(src
+					.GetRasterColorInterpretation());
+			src.GetNoDataValue(noData);
+			if (noData[0] != null) {
+				dst.SetNoDataValue(noData[0]);
 			}
-			imgBuffer = new DataBufferByte(bytes, pixels);
-			buffer_type = DataBuffer.TYPE_BYTE;
-			sampleModel = new BandedSampleModel(buffer_type, xsize, ysize,
-					xsize, banks, offsets);
-			data_type = (poBand.GetRasterColorInterpretation() == gdalconstConstants.GCI_PaletteIndex) ? BufferedImage.TYPE_BYTE_INDEXED
-					: BufferedImage.TYPE_BYTE_GRAY;
-		} else if (buf_type == gdalconstConstants.GDT_Int16) {
-			short[][] shorts = new short[bandCount][];
-			for (int i = 0; i < bandCount; i++) {
-				shorts[i] = new short[pixels];
-				bands[i].asShortBuffer().get(shorts[i]);
+			if (src.GetRasterColorTable() != null) {
+				dst.SetRasterColorTable(src.GetRasterColorTable());
 			}
-			imgBuffer = new DataBufferShort(shorts, pixels);
-			buffer_type = DataBuffer.TYPE_USHORT;
-			sampleModel = new BandedSampleModel(buffer_type, xsize, ysize,
-					xsize, banks, offsets);
-			data_type = BufferedImage.TYPE_USHORT_GRAY;
-		} else if (buf_type == gdalconstConstants.GDT_Int32) {
-			int[][] ints = new int[bandCount][];
-			for (int i = 0; i < bandCount; i++) {
-				ints[i] = new int[pixels];
-				bands[i].asIntBuffer().get(ints[i]);
-			}
-			imgBuffer = new DataBufferInt(ints, pixels);
-			buffer_type = DataBuffer.TYPE_INT;
-			sampleModel = new BandedSampleModel(buffer_type, xsize, ysize,
-					xsize, banks, offsets);
-			data_type = BufferedImage.TYPE_CUSTOM;
 		}
+		return vrt;
+	}
 
-		WritableRaster raster = Raster.createWritableRaster(sampleModel,
-				imgBuffer, null);
-		BufferedImage img = null;
-		ColorModel cm = null;
-
-		if (poBand.GetRasterColorInterpretation() == gdalconstConstants.GCI_PaletteIndex) {
-			data_type = BufferedImage.TYPE_BYTE_INDEXED;
-			cm = poBand.GetRasterColorTable().getIndexColorModel(
-					gdal.GetDataTypeSize(buf_type));
-			img = new BufferedImage(cm, raster, false, null);
-		} else {
-			ColorSpace cs = null;
-			if (bandCount > 2) {
-				cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-				cm = new ComponentColorModel(cs, false, false,
-						ColorModel.OPAQUE, buffer_type);
-				img = new BufferedImage(cm, raster, true, null);
-			} else {
-				img = new BufferedImage(xsize, ysize, data_type);
-				img.setData(raster);
-			}
-		}
-		return img;
+	private static String escapeXml(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
 	}
 
 	public static void printLastError() {
@@ -0,0 +1,133 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+
+import org.gdal.gdal.gdal;
+import org.openstreetmap.josm.Main;
+
+/**
+ * Configures GDAL for the machine JOSM is running on
+ * 
+ * GDAL's defaults (5% of RAM block cache in newer, 40 MB in older versions,
+ * single-threaded decoding) ignore that JOSM already claims a large Java heap
+ * and that decoding compressed GeoTiffs parallelizes well. This sizes the
+ * block cache from the memory left next to the heap, enables multi-threaded
+ * decompression and warping, and applies user overrides from the
+ * preferences. Must run before the first dataset is opened.
+ */
+public class GDALTuning {
+
+	private static final long MB = 1024L * 1024L;
+	private static final long MIN_CACHE = 64 * MB;
+	private static final long MAX_CACHE = 2048 * MB;
+
+	private static long s_cacheMax = 0;
+	private static String s_threads = null;
+
+	/**
+	 * Applies the settings. Safe to call more than once.
+	 */
+	public static synchronized void apply() {
+		// Block cache
+		long cacheMax = Main.pref.getInteger("geotiffovl.gdal.cachemax.mb", 0)
+				* MB;
+		if (cacheMax <= 0) {
+			cacheMax = autoCacheMax();
+		}
+		// The Java bindings take an int, so 2 GB is one byte too many
+		cacheMax = Math.min(cacheMax, Integer.MAX_VALUE);
+		gdal.SetConfigOption("GDAL_CACHEMAX", Long.toString(cacheMax / MB));
+		gdal.SetCacheMax((int) cacheMax);
+		s_cacheMax = cacheMax;
+
+		// Multi-threaded decompression (GTiff) and warping
+		String threads = Main.pref.get("geotiffovl.gdal.threads", "");
+		if (threads.length() == 0) {
+			threads = Integer.toString(Runtime.getRuntime()
+					.availableProcessors());
+		}
+		gdal.SetConfigOption("GDAL_NUM_THREADS", threads);
+		s_threads = threads;
+
+		// Free-form overrides, e.g. "VSI_CACHE=TRUE;GDAL_TIFF_OVR_BLOCKSIZE=512"
+		String options = Main.pref.get("geotiffovl.gdal.config", "");
+		for (String option : options.split(";")) {
+			int eq = option.indexOf('=');
+			if (eq > 0) {
+				gdal.SetConfigOption(option.substring(0, eq).trim(), option
+						.substring(eq + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * Sizes the block cache to a quarter of the physical memory not reserved
+	 * for the Java heap
+	 */
+	private static long autoCacheMax() {
+		long physical = getPhysicalMemory();
+		if (physical <= 0) {
+			return 256 * MB;
+		}
+		long nativeMemory = physical - Runtime.getRuntime().maxMemory();
+		return Math.max(MIN_CACHE, Math.min(MAX_CACHE, nativeMemory / 4));
+	}
+
+	/**
+	 * @return Total physical memory in bytes, or -1 if the JVM does not tell
+	 */
+	private static long getPhysicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		try {
+			// Only available on Sun/Oracle/OpenJDK VMs
+			Class<?> sunOs = Class
+					.forName("com.sun.management.OperatingSystemMXBean");
+			if (sunOs.isInstance(os)) {
+				Method m = sunOs.getMethod("getTotalPhysicalMemorySize");
+				return ((Number) m.invoke(os)).longValue();
+			}
+		} catch (Exception e) {
+			// Fall through
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Bytes currently held in GDAL's block cache
+	 */
+	public static long getCacheUsed() {
+		return gdal.GetCacheUsed();
+	}
+
+	/**
+	 * @return Block cache size in bytes as configured by {@link #apply()}
+	 */
+	public static synchronized long getCacheMax() {
+		return s_cacheMax;
+	}
+
+	/**
+	 * @return Value of GDAL_NUM_THREADS
+	 */
+	public static synchronized String getThreads() {
+		return s_threads;
+	}
+}
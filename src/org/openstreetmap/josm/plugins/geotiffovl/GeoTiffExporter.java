@@ -0,0 +1,380 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.ColorTable;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Driver;
+import org.gdal.gdal.ProgressCallback;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+import org.gdal.gdalconst.gdalconstConstants;
+import org.openstreetmap.josm.data.coor.EastNorth;
+
+/**
+ * Writes a region of a raster, reprojected like it is displayed, to a new
+ * tiled and compressed GeoTIFF with overviews
+ * 
+ * The data is streamed from a warped VRT to the GTiff driver one window at a
+ * time, so memory use does not depend on the size of the output. The output
+ * resolution is the resolution of the warped VRT divided by an integer
+ * factor, which keeps the windows aligned to whole source pixels.
+ * 
+ * Only the bands the layer shows are exported, as they are read, i.e.
+ * without the layer's processing.
+ * 
+ * Instances open their own handle of the source, so they can be used from
+ * any one thread independently of the layer.
+ */
+public class GeoTiffExporter {
+
+	/**
+	 * Compression methods offered to the user, as understood by the GTiff
+	 * driver
+	 */
+	public static final String[] COMPRESSIONS = { "DEFLATE", "LZW", "JPEG",
+			"NONE" };
+
+	/**
+	 * Edge length of the output tiles, also the height of a window
+	 */
+	private static final int BLOCK_SIZE = 256;
+	/**
+	 * Width of a window in output pixels
+	 */
+	private static final int WINDOW_WIDTH = 8 * BLOCK_SIZE;
+	/**
+	 * Share of the progress spent on writing, the rest is building overviews
+	 */
+	private static final double WRITE_SHARE = 0.8;
+
+	private Dataset m_source;
+	private Dataset m_subset;
+	private Dataset m_warped;
+	private final String m_wkt;
+	private final double[] m_geoTransform;
+
+	/**
+	 * @param sourcePath
+	 *            Path of the source raster as understood by gdal.Open()
+	 * @param dstWkt
+	 *            Projection of the output
+	 * @param bands
+	 *            Bands to export, 1-based, null for all
+	 * @throws IOException
+	 *             If the source cannot be opened or reprojected
+	 */
+	public GeoTiffExporter(String sourcePath, String dstWkt, int[] bands)
+			throws IOException {
+		m_source = gdal.Open(sourcePath, gdalconst.GA_ReadOnly);
+		if (m_source == null) {
+			throw new IOException("Could not open " + sourcePath + ": "
+					+ gdal.GetLastErrorMsg());
+		}
+		if (bands != null) {
+			m_subset = GDALTools.selectBands(m_source, bands);
+			if (m_subset == null) {
+				dispose();
+				throw new IOException("Could not select bands of "
+						+ sourcePath + ": " + gdal.GetLastErrorMsg());
+			}
+		}
+		// Same warp parameters as the layer, so the export matches the display
+		m_warped = gdal.AutoCreateWarpedVRT(m_subset != null ? m_subset
+				: m_source, null, dstWkt, gdalconst.GRA_Cubic, 0.2);
+		if (m_warped == null) {
+			dispose();
+			throw new IOException("Could not reproject " + sourcePath + ": "
+					+ gdal.GetLastErrorMsg());
+		}
+		m_wkt = dstWkt;
+		m_geoTransform = m_warped.GetGeoTransform();
+	}
+
+	/**
+	 * @return Size of a pixel at factor 1 in map units
+	 */
+	public double getPixelSize() {
+		return Math.abs(m_geoTransform[1]);
+	}
+
+	/**
+	 * @return Factor whose pixel size is closest to but not larger than the
+	 *         given one, at least 1
+	 */
+	public int factorForPixelSize(double pixelSize) {
+		int factor = (int) Math.floor(pixelSize / getPixelSize());
+		return Math.max(1, factor);
+	}
+
+	/**
+	 * Computes the window of the warped raster covering a region
+	 * 
+	 * @param a
+	 *            One corner of the region
+	 * @param b
+	 *            The opposite corner
+	 * @param factor
+	 *            Output pixel size as multiple of the warped raster's
+	 * @return The window in pixels of the warped raster, aligned to the
+	 *         factor and clipped to the raster. A partial output pixel at the
+	 *         right or bottom edge of the raster is left out, so the window
+	 *         is a whole multiple of the factor. Empty if the region does not
+	 *         overlap the raster.
+	 */
+	public Rectangle getWindow(EastNorth a, EastNorth b, int factor) {
+		Point2D pa = GDALTools.applyInvGeoTransform(a.east(), a.north(),
+				m_geoTransform);
+		Point2D pb = GDALTools.applyInvGeoTransform(b.east(), b.north(),
+				m_geoTransform);
+		int x0 = (int) Math.floor(Math.min(pa.getX(), pb.getX()) / factor)
+				* factor;
+		int y0 = (int) Math.floor(Math.min(pa.getY(), pb.getY()) / factor)
+				* factor;
+		int x1 = (int) Math.ceil(Math.max(pa.getX(), pb.getX()) / factor)
+				* factor;
+		int y1 = (int) Math.ceil(Math.max(pa.getY(), pb.getY()) / factor)
+				* factor;
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, m_warped.getRasterXSize() / factor * factor);
+		y1 = Math.min(y1, m_warped.getRasterYSize() / factor * factor);
+		if (x1 <= x0 || y1 <= y0) {
+			return new Rectangle();
+		}
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * @return Size of the output in pixels for a window and factor
+	 */
+	public static Rectangle getOutputSize(Rectangle window, int factor) {
+		return new Rectangle(0, 0, window.width / factor, window.height
+				/ factor);
+	}
+
+	/**
+	 * Writes a window of the warped raster to a new GeoTIFF
+	 * 
+	 * @param file
+	 *            File to create, an existing file is overwritten
+	 * @param window
+	 *            Window from {@link #getWindow(EastNorth, EastNorth, int)}
+	 * @param factor
+	 *            Output pixel size as multiple of the warped raster's
+	 * @param compression
+	 *            One of {@link #COMPRESSIONS}. JPEG falls back to DEFLATE
+	 *            for data JPEG cannot hold.
+	 * @param progress
+	 *            Receives progress from 0 to 1 and cancels the export by
+	 *            returning 0, may be null
+	 * @throws IOException
+	 *             If GDAL fails or the export was cancelled. The partial
+	 *             output is deleted.
+	 */
+	public void write(File file, Rectangle window, int factor,
+			String compression, ProgressCallback progress) throws IOException {
+		Rectangle size = getOutputSize(window, factor);
+		int bands = m_warped.getRasterCount();
+		Band first = m_warped.GetRasterBand(1);
+		int type = first.getDataType();
+
+		List<String> options = new ArrayList<String>();
+		options.add("TILED=YES");
+		options.add("BLOCKXSIZE=" + BLOCK_SIZE);
+		options.add("BLOCKYSIZE=" + BLOCK_SIZE);
+		options.add("BIGTIFF=IF_SAFER");
+		if ("JPEG".equals(compression)
+				&& (type != gdalconstConstants.GDT_Byte
+						|| (bands != 1 && bands != 3) || first
+						.GetRasterColorTable() != null)) {
+			compression = "DEFLATE";
+		}
+		if (!"NONE".equals(compression)) {
+			options.add("COMPRESS=" + compression);
+		}
+		if ("JPEG".equals(compression) && bands == 3) {
+			options.add("PHOTOMETRIC=YCBCR");
+		}
+
+		Driver driver = gdal.GetDriverByName("GTiff");
+		Dataset out = driver.Create(file.getPath(), size.width, size.height,
+				bands, type, options.toArray(new String[options.size()]));
+		if (out == null) {
+			throw new IOException("Could not create " + file + ": "
+					+ gdal.GetLastErrorMsg());
+		}
+
+		boolean success = false;
+		try {
+			double[] gt = m_geoTransform;
+			out.SetProjection(m_wkt);
+			out.SetGeoTransform(new double[] {
+					gt[0] + window.x * gt[1] + window.y * gt[2],
+					gt[1] * factor, gt[2] * factor,
+					gt[3] + window.x * gt[4] + window.y * gt[5],
+					gt[4] * factor, gt[5] * factor });
+			copyBandInfo(out);
+
+			writeWindows(out, window, factor, size, type, progress);
+
+			// Overviews down to a single tile
+			List<Integer> levels = new ArrayList<Integer>();
+			for (int level = 2; Math.max(size.width, size.height) / level >= BLOCK_SIZE; level *= 2) {
+				levels.add(level);
+			}
+			if (!levels.isEmpty()) {
+				int[] list = new int[levels.size()];
+				for (int i = 0; i < list.length; i++) {
+					list[i] = levels.get(i);
+				}
+				String resampling = first.GetRasterColorTable() != null ? "NEAREST"
+						: "AVERAGE";
+				if (out.BuildOverviews(resampling, list, new ScaledProgress(
+						progress, WRITE_SHARE, 1.0)) != gdalconstConstants.CE_None) {
+					// GDAL reports cancellation as "User terminated"
+					throw new IOException("Could not build overviews: "
+							+ gdal.GetLastErrorMsg());
+				}
+			}
+			out.FlushCache();
+			success = true;
+		} finally {
+			out.delete();
+			if (!success) {
+				driver.Delete(file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Copies window after window from the warped raster to the output. Windows
+	 * are one block high, so every row of blocks is complete before the next
+	 * one starts and GDAL can flush it.
+	 */
+	private void writeWindows(Dataset out, Rectangle window, int factor,
+			Rectangle size, int type, ProgressCallback progress)
+			throws IOException {
+		int bands = m_warped.getRasterCount();
+		int[] bandList = new int[bands];
+		for (int i = 0; i < bands; i++) {
+			bandList[i] = i + 1;
+		}
+		byte[] buf = new byte[WINDOW_WIDTH * BLOCK_SIZE * bands
+				* gdal.GetDataTypeSize(type) / 8];
+
+		long total = (long) ((size.width + WINDOW_WIDTH - 1) / WINDOW_WIDTH)
+				* ((size.height + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		long done = 0;
+		for (int y = 0; y < size.height; y += BLOCK_SIZE) {
+			int h = Math.min(BLOCK_SIZE, size.height - y);
+			int srcY = window.y + y * factor;
+			for (int x = 0; x < size.width; x += WINDOW_WIDTH) {
+				int w = Math.min(WINDOW_WIDTH, size.width - x);
+				int srcX = window.x + x * factor;
+
+				// The window is a multiple of the factor, so every output
+				// pixel covers exactly factor x factor source pixels
+				if (m_warped.ReadRaster(srcX, srcY, w * factor, h * factor, w,
+						h, type, buf, bandList) != gdalconstConstants.CE_None) {
+					throw new IOException("Could not read source: "
+							+ gdal.GetLastErrorMsg());
+				}
+				if (out.WriteRaster(x, y, w, h, w, h, type, buf, bandList) != gdalconstConstants.CE_None) {
+					throw new IOException("Could not write output: "
+							+ gdal.GetLastErrorMsg());
+				}
+
+				done++;
+				if (progress != null
+						&& progress.run(WRITE_SHARE * done / total, null) == 0) {
+					throw new IOException("Export cancelled");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies colour interpretation, palette and no data value of all bands
+	 */
+	private void copyBandInfo(Dataset out) {
+		Double[] noData = new Double[1];
+		for (int b = 1; b <= m_warped.getRasterCount(); b++) {
+			Band src = m_warped.GetRasterBand(b);
+			Band dst = out.GetRasterBand(b);
+			dst.SetRasterColorInterpretation(src
+					.GetRasterColorInterpretation());
+			ColorTable ct = src.GetRasterColorTable();
+			if (ct != null) {
+				dst.SetRasterColorTable(ct);
+			}
+			src.GetNoDataValue(noData);
+			if (noData[0] != null) {
+				dst.SetNoDataValue(noData[0]);
+			}
+		}
+	}
+
+	/**
+	 * Releases the datasets
+	 */
+	public void dispose() {
+		if (m_warped != null) {
+			m_warped.delete();
+			m_warped = null;
+		}
+		if (m_subset != null) {
+			m_subset.delete();
+			m_subset = null;
+		}
+		if (m_source != null) {
+			m_source.delete();
+			m_source = null;
+		}
+	}
+
+	/**
+	 * Maps the progress of a step to its share of the whole export
+	 */
+	private static class ScaledProgress extends ProgressCallback {
+		private final ProgressCallback m_target;
+		private final double m_from;
+		private final double m_to;
+
+		ScaledProgress(ProgressCallback target, double from, double to) {
+			m_target = target;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		public int run(double complete, String message) {
+			if (m_target == null) {
+				return 1;
+			}
+			return m_target.run(m_from + (m_to - m_from) * complete, message);
+		}
+	}
+}
@@ -23,7 +23,6 @@ import java.awt.event.KeyEvent;
 
 import javax.swing.JMenu;
 
-import org.gdal.gdal.gdal;
 import org.openstreetmap.josm.Main;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
@@ -37,6 +36,7 @@ public class GeoTiffOvlPlugin extends Plugin {
 
 	private JMenu m_menu = null;
 	private AddGeoTiffOverlayAction m_addGeoTiffOverlayAction = null;
+	private AddGeoTiffUrlAction m_addGeoTiffUrlAction = null;
 
 	public GeoTiffOvlPlugin(PluginInformation info) {
 		super(info);
@@ -51,9 +51,11 @@ public class GeoTiffOvlPlugin extends Plugin {
 		if (m_menu != null) {
 			m_addGeoTiffOverlayAction = new AddGeoTiffOverlayAction();
 			m_menu.add(m_addGeoTiffOverlayAction);
+			m_addGeoTiffUrlAction = new AddGeoTiffUrlAction();
+			m_menu.add(m_addGeoTiffUrlAction);
 		}
 
-		// Register raster formats, needed to actually open a file
-		gdal.AllRegister();
+		// GDAL is loaded on first use, or in the background from now on
+		GDALBootstrap.prewarm();
 	}
 }
\ No newline at end of file
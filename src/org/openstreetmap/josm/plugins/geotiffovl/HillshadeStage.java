@@ -0,0 +1,154 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+/**
+ * Shaded relief from the first band of the raster, taken as elevation
+ * 
+ * Slope and aspect come from Horn's 3x3 kernel, so the tile is read with a
+ * halo of one pixel and its edges match the neighbouring tiles. As the first
+ * stage, the result is the grey shade itself. After other stages, e.g. a
+ * colour ramp, their bands are darkened by the shade instead.
+ */
+public class HillshadeStage implements TileStage {
+
+	/**
+	 * Share of the brightness that is kept in full shadow when shading other
+	 * bands
+	 */
+	private static final float AMBIENT = 0.35f;
+
+	private final double m_azimuth;
+	private final double m_altitude;
+	private final double m_zFactor;
+
+	/**
+	 * @param azimuth
+	 *            Direction of the light in degrees clockwise from north
+	 * @param altitude
+	 *            Height of the light above the horizon in degrees
+	 * @param zFactor
+	 *            Elevation units per map unit, e.g. about 1/111120 for
+	 *            elevations in metres on a map in degrees
+	 */
+	public HillshadeStage(double azimuth, double altitude, double zFactor) {
+		m_azimuth = azimuth;
+		m_altitude = altitude;
+		m_zFactor = zFactor;
+	}
+
+	public int getHalo() {
+		return 1;
+	}
+
+	public int getBandCount(int bands, boolean raw) {
+		return raw ? 1 : bands;
+	}
+
+	public void markRawBands(boolean[] used, boolean raw) {
+		// Always shades the elevation, whatever ran before
+		used[0] = true;
+	}
+
+	public void apply(TileData tile) {
+		final int width = tile.getWidth();
+		final int height = tile.getHeight();
+		final float[] z = tile.getRaw()[0];
+		final float[] shade = new float[z.length];
+
+		final double zenith = Math.toRadians(90.0 - m_altitude);
+		final double cosZenith = Math.cos(zenith);
+		final double sinZenith = Math.sin(zenith);
+		final double azimuth = Math.toRadians((450.0 - m_azimuth) % 360.0);
+		final double xScale = m_zFactor / (8.0 * tile.getPixelWidth());
+		final double yScale = m_zFactor / (8.0 * tile.getPixelHeight());
+
+		// Pixels at the edge of the bands reuse their own row or column as
+		// neighbour. That only affects the halo, or the edge of the raster.
+		ParallelRows.run(width, height, new ParallelRows.Body() {
+			public void run(int y0, int y1) {
+				for (int y = y0; y < y1; y++) {
+					int up = Math.max(y - 1, 0) * width;
+					int row = y * width;
+					int down = Math.min(y + 1, height - 1) * width;
+					for (int x = 0; x < width; x++) {
+						int l = Math.max(x - 1, 0);
+						int r = Math.min(x + 1, width - 1);
+						double a = z[up + l], b = z[up + x], c = z[up + r];
+						double d = z[row + l], f = z[row + r];
+						double g = z[down + l], h = z[down + x], i = z[down
+								+ r];
+						double dx = ((c + 2 * f + i) - (a + 2 * d + g))
+								* xScale;
+						double dy = ((g + 2 * h + i) - (a + 2 * b + c))
+								* yScale;
+						double slope = Math.atan(Math.sqrt(dx * dx + dy * dy));
+						double aspect = Math.atan2(dy, -dx);
+						double s = cosZenith * Math.cos(slope) + sinZenith
+								* Math.sin(slope) * Math.cos(azimuth - aspect);
+						// NaN if any neighbour has no data
+						shade[row + x] = s > 0 ? (float) s : (s <= 0 ? 0f
+								: Float.NaN);
+					}
+				}
+			}
+		});
+
+		if (tile.isRaw()) {
+			ParallelRows.run(width, height, new ParallelRows.Body() {
+				public void run(int y0, int y1) {
+					for (int i = y0 * width; i < y1 * width; i++) {
+						shade[i] *= 255f;
+					}
+				}
+			});
+			tile.setBands(new float[][] { shade }, new double[] { 0 },
+					new double[] { 255 }, null, null);
+			return;
+		}
+
+		// Darken the current bands, mapped to 0..255 first
+		final float[][] src = tile.getBands();
+		final float[][] dst = new float[src.length][];
+		final float[] offset = new float[src.length];
+		final float[] factor = new float[src.length];
+		double[] min = new double[src.length];
+		double[] max = new double[src.length];
+		for (int b = 0; b < src.length; b++) {
+			double range = tile.getMax(b) - tile.getMin(b);
+			offset[b] = (float) tile.getMin(b);
+			factor[b] = range > 0 ? (float) (255.0 / range) : 0f;
+			dst[b] = new float[src[b].length];
+			max[b] = 255;
+		}
+		ParallelRows.run(width, height, new ParallelRows.Body() {
+			public void run(int y0, int y1) {
+				for (int b = 0; b < src.length; b++) {
+					float[] s = src[b];
+					float[] d = dst[b];
+					float o = offset[b];
+					float f = factor[b];
+					for (int i = y0 * width; i < y1 * width; i++) {
+						float light = AMBIENT + (1f - AMBIENT) * shade[i];
+						d[i] = (s[i] - o) * f * light;
+					}
+				}
+			}
+		});
+		tile.setBands(dst, min, max, null, null);
+	}
+}
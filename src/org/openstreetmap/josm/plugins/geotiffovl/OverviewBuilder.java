@@ -0,0 +1,282 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Driver;
+import org.gdal.gdal.ProgressCallback;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+import org.gdal.gdalconst.gdalconstConstants;
+
+/**
+ * Builds external overviews (a .ovr file) for a raster that has none, in the
+ * background
+ * 
+ * Without overviews, every zoomed out tile decimates the full resolution
+ * data. GDAL builds the overviews block by block through its block cache, so
+ * memory stays bounded by GDAL_CACHEMAX, and uses GDAL_NUM_THREADS for
+ * resampling and compression where the GDAL version supports it.
+ * 
+ * The overviews are built for a temporary VRT next to the raster and renamed
+ * to the raster's .ovr once complete. A cancelled or interrupted build thus
+ * never leaves a truncated .ovr that GDAL would pick up. Every build has a
+ * VRT of its own, so builds for the same raster, e.g. of two layers, do not
+ * get in each other's way.
+ */
+public class OverviewBuilder {
+
+	/**
+	 * Gets notified on the builder thread when the overviews are in place
+	 */
+	public interface Listener {
+		void overviewsBuilt(OverviewBuilder builder);
+	}
+
+	public enum State {
+		BUILDING, DONE, FAILED, CANCELLED
+	}
+
+	/**
+	 * Coarsest overview is the first that fits into a tile of this size
+	 */
+	private static final int MIN_SIZE = 256;
+	private static final String TEMP_SUFFIX = ".geotiffovl.vrt";
+	private static final String COMPRESS_OVERVIEW = "COMPRESS_OVERVIEW";
+
+	private final File m_source;
+	private final Listener m_listener;
+	private final int[] m_levels;
+	private final String m_resampling;
+	private volatile State m_state = State.BUILDING;
+	private volatile double m_progress = 0.0;
+	private volatile boolean m_cancelled = false;
+	private volatile String m_error;
+	private long m_startMillis;
+	private volatile long m_millis;
+	private Thread m_thread;
+
+	/**
+	 * @param source
+	 *            The raster file, a .ovr is created next to it
+	 * @param dataset
+	 *            Dataset of the raster, only queried for size and bands
+	 * @param listener
+	 *            Notified when done, may be null
+	 */
+	public OverviewBuilder(File source, Dataset dataset, Listener listener) {
+		m_source = source;
+		m_listener = listener;
+		m_levels = getLevels(dataset);
+		Band band = dataset.GetRasterBand(1);
+		m_resampling = band.GetRasterColorTable() != null ? "NEAREST"
+				: "AVERAGE";
+	}
+
+	/**
+	 * @return True if the dataset has no overviews but would benefit from
+	 *         them
+	 */
+	public static boolean isNeeded(Dataset dataset) {
+		return dataset.GetRasterBand(1).GetOverviewCount() == 0
+				&& getLevels(dataset).length > 0;
+	}
+
+	private static int[] getLevels(Dataset dataset) {
+		int size = Math.max(dataset.getRasterXSize(), dataset
+				.getRasterYSize());
+		List<Integer> levels = new ArrayList<Integer>();
+		for (int level = 2; size / level >= MIN_SIZE; level *= 2) {
+			levels.add(level);
+		}
+		int[] result = new int[levels.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = levels.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Starts building on a background thread of low priority
+	 */
+	public void start() {
+		start(null);
+	}
+
+	/**
+	 * Starts building on a background thread of low priority, once a
+	 * previous builder for the same raster has stopped, e.g. one cancelled
+	 * as the raster changed. The new overviews then replace the .ovr in
+	 * place, which shows the old raster.
+	 * 
+	 * @param previous
+	 *            The builder to wait for, null for none
+	 */
+	public void start(final OverviewBuilder previous) {
+		m_startMillis = System.currentTimeMillis();
+		m_thread = new Thread(new Runnable() {
+			public void run() {
+				if (previous != null) {
+					previous.awaitStop();
+				}
+				build(previous != null);
+			}
+		}, "geotiffovl-overviews");
+		m_thread.setDaemon(true);
+		m_thread.setPriority(Thread.MIN_PRIORITY);
+		m_thread.start();
+	}
+
+	/**
+	 * Waits until the building thread has ended
+	 */
+	private void awaitStop() {
+		try {
+			m_thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops building as soon as GDAL checks for it. Nothing is left on disk.
+	 */
+	public void cancel() {
+		m_cancelled = true;
+	}
+
+	public State getState() {
+		return m_state;
+	}
+
+	/**
+	 * @return Progress from 0 to 1
+	 */
+	public double getProgress() {
+		return m_progress;
+	}
+
+	/**
+	 * @return Reason of failure, null unless the state is FAILED
+	 */
+	public String getError() {
+		return m_error;
+	}
+
+	public int getLevelCount() {
+		return m_levels.length;
+	}
+
+	/**
+	 * @return Time spent building in milliseconds, once done
+	 */
+	public long getMillis() {
+		return m_millis;
+	}
+
+	/**
+	 * @param replace
+	 *            True to replace an existing .ovr, false to keep it, as it
+	 *            is the same as the new one
+	 */
+	private void build(boolean replace) {
+		File vrt = null;
+		File vrtOvr = null;
+		File ovr = new File(m_source.getPath() + ".ovr");
+		Dataset src = null;
+		Dataset ds = null;
+		boolean compress = false;
+		try {
+			vrt = File.createTempFile(m_source.getName() + ".", TEMP_SUFFIX,
+					m_source.getAbsoluteFile().getParentFile());
+			vrtOvr = new File(vrt.getPath() + ".ovr");
+
+			src = gdal.Open(m_source.getAbsolutePath(), gdalconst.GA_ReadOnly);
+			if (src == null) {
+				throw new IOException(gdal.GetLastErrorMsg());
+			}
+			Driver driver = gdal.GetDriverByName("VRT");
+			ds = driver.CreateCopy(vrt.getPath(), src, new String[0]);
+			if (ds == null) {
+				throw new IOException(gdal.GetLastErrorMsg());
+			}
+			// Only for this thread, and unless the user chose otherwise
+			if (gdal.GetConfigOption(COMPRESS_OVERVIEW) == null) {
+				gdal.SetThreadLocalConfigOption(COMPRESS_OVERVIEW, "DEFLATE");
+				compress = true;
+			}
+
+			int err = ds.BuildOverviews(m_resampling, m_levels,
+					new ProgressCallback() {
+						@Override
+						public int run(double complete, String message) {
+							m_progress = complete;
+							return m_cancelled ? 0 : 1;
+						}
+					});
+			ds.delete();
+			ds = null;
+			if (m_cancelled) {
+				m_state = State.CANCELLED;
+				return;
+			}
+			if (err != gdalconstConstants.CE_None) {
+				throw new IOException(gdal.GetLastErrorMsg());
+			}
+
+			// Another build for the same raster may have been quicker
+			if (replace || !ovr.exists()) {
+				Files.move(vrtOvr.toPath(), ovr.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			m_millis = System.currentTimeMillis() - m_startMillis;
+			m_progress = 1.0;
+			m_state = State.DONE;
+		} catch (IOException e) {
+			m_error = e.getMessage();
+			m_state = State.FAILED;
+			System.err.println("Could not build overviews for " + m_source
+					+ ": " + e.getMessage());
+		} finally {
+			if (compress) {
+				gdal.SetThreadLocalConfigOption(COMPRESS_OVERVIEW, null);
+			}
+			if (ds != null) {
+				ds.delete();
+			}
+			if (src != null) {
+				src.delete();
+			}
+			if (vrt != null) {
+				vrtOvr.delete();
+				vrt.delete();
+			}
+		}
+
+		if (m_state == State.DONE && m_listener != null) {
+			m_listener.overviewsBuilt(this);
+		}
+	}
+}
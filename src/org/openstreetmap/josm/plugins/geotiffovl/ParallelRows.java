@@ -0,0 +1,97 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-pixel work over the rows of a tile in parallel
+ * 
+ * Rows are split into stripes on a shared fork/join pool, so the body is
+ * called once per stripe and can keep its inner loop free of calls.
+ */
+public final class ParallelRows {
+
+	/**
+	 * Receives a range of rows to process
+	 */
+	public interface Body {
+		/**
+		 * @param y0
+		 *            First row, inclusive
+		 * @param y1
+		 *            Last row, exclusive
+		 */
+		void run(int y0, int y1);
+	}
+
+	/**
+	 * Stripes are split until they have at most this many pixels
+	 */
+	private static final int GRAIN = 16 * 1024;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime
+			.getRuntime().availableProcessors());
+
+	private ParallelRows() {
+	}
+
+	/**
+	 * Processes all rows and returns when all are done
+	 * 
+	 * @param width
+	 *            Pixels per row, decides how finely the rows are split
+	 * @param height
+	 *            Number of rows
+	 * @param body
+	 *            The work, must be safe to run for disjoint row ranges
+	 *            concurrently
+	 */
+	public static void run(int width, int height, Body body) {
+		if (height > 0) {
+			POOL.invoke(new Stripe(body, width, 0, height));
+		}
+	}
+
+	private static class Stripe extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Body m_body;
+		private final int m_width;
+		private final int m_y0;
+		private final int m_y1;
+
+		Stripe(Body body, int width, int y0, int y1) {
+			m_body = body;
+			m_width = width;
+			m_y0 = y0;
+			m_y1 = y1;
+		}
+
+		@Override
+		protected void compute() {
+			if ((long) (m_y1 - m_y0) * m_width <= GRAIN || m_y1 - m_y0 < 2) {
+				m_body.run(m_y0, m_y1);
+			} else {
+				int mid = (m_y0 + m_y1) >>> 1;
+				invokeAll(new Stripe(m_body, m_width, m_y0, mid), new Stripe(
+						m_body, m_width, mid, m_y1));
+			}
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.ColorTable;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdalconst.gdalconstConstants;
+
+/**
+ * Reads windows of a dataset into packed ARGB images
+ * 
+ * How to map the bands to colours is decided once per dataset: 8 bit grey or
+ * RGB(A), palette, or any other data type scaled from its value range to 8
+ * bit. Only the bands shown are read, either picked automatically or chosen
+ * by the user, e.g. 4,3,2 for a false colour composite of a multispectral
+ * image. They are read with a single call into one pixel interleaved buffer.
+ * The conversion itself runs as type-specific kernels writing straight into
+ * the int[] of the image, split into row stripes by {@link ParallelRows}.
+ * Kernels loop over plain arrays and only dispatch once per stripe.
+ */
+public class PixelConverter {
+
+	private enum Kind {
+		BYTE, PALETTE, SCALED
+	}
+
+	private final Kind m_kind;
+	/**
+	 * Bands to read, 1-based: grey or red, green, blue, optionally followed
+	 * by alpha
+	 */
+	private final int[] m_bands;
+	private final boolean m_alpha;
+	/**
+	 * ARGB colours of a palette, indexed by value
+	 */
+	private final int[] m_palette;
+	/**
+	 * Per band value mapped to 0 and factor to map the range to 0..255
+	 */
+	private final float[] m_offset;
+	private final float[] m_factor;
+	/**
+	 * Per band no data value, NaN if none
+	 */
+	private final float[] m_noData;
+
+	/**
+	 * Determines how to convert a dataset, picking the bands to show
+	 * automatically. May compute the value range of bands that do not store
+	 * it, which reads an approximation of the data.
+	 */
+	public PixelConverter(Dataset ds) {
+		this(ds, null);
+	}
+
+	/**
+	 * Determines how to convert a dataset. May compute the value range of
+	 * bands that do not store it, which reads an approximation of the data.
+	 * 
+	 * @param bands
+	 *            Bands to show, 1-based: grey, grey and alpha, red green and
+	 *            blue, or red green blue and alpha. Null to pick them
+	 *            automatically.
+	 */
+	public PixelConverter(Dataset ds, int[] bands) {
+		if (bands != null) {
+			m_bands = bands.clone();
+			m_alpha = bands.length == 2 || bands.length == 4;
+		} else {
+			int count = ds.getRasterCount();
+			Band last = ds.GetRasterBand(count);
+			boolean alpha = count > 1
+					&& last.GetRasterColorInterpretation() == gdalconstConstants.GCI_AlphaBand;
+
+			int colours = count >= 3 ? 3 : 1;
+			m_alpha = alpha && count > colours;
+			m_bands = new int[colours + (m_alpha ? 1 : 0)];
+			for (int i = 0; i < colours; i++) {
+				m_bands[i] = i + 1;
+			}
+			if (m_alpha) {
+				m_bands[colours] = count;
+			}
+		}
+
+		Band first = ds.GetRasterBand(m_bands[0]);
+		boolean allBytes = true;
+		for (int b : m_bands) {
+			allBytes &= ds.GetRasterBand(b).getDataType() == gdalconstConstants.GDT_Byte;
+		}
+		ColorTable ct = first.GetRasterColorTable();
+		if (first.GetRasterColorInterpretation() == gdalconstConstants.GCI_PaletteIndex
+				&& ct != null && (bands == null || bands.length == 1)) {
+			m_kind = Kind.PALETTE;
+			m_palette = new int[Math.max(ct.GetCount(), 1)];
+			for (int i = 0; i < ct.GetCount(); i++) {
+				m_palette[i] = ct.GetColorEntry(i).getRGB();
+			}
+		} else if (allBytes) {
+			m_kind = Kind.BYTE;
+			m_palette = null;
+		} else {
+			m_kind = Kind.SCALED;
+			m_palette = null;
+		}
+
+		m_offset = new float[m_bands.length];
+		m_factor = new float[m_bands.length];
+		m_noData = new float[m_bands.length];
+		for (int b = 0; b < m_bands.length; b++) {
+			Band band = ds.GetRasterBand(m_bands[b]);
+			Double[] nd = new Double[1];
+			band.GetNoDataValue(nd);
+			m_noData[b] = nd[0] != null ? nd[0].floatValue() : Float.NaN;
+			if (m_kind == Kind.SCALED) {
+				double[] range = getRange(band);
+				m_offset[b] = (float) range[0];
+				m_factor[b] = range[1] > range[0] ? (float) (255.0 / (range[1] - range[0]))
+						: 0f;
+			}
+		}
+	}
+
+	/**
+	 * Reads a window of the dataset into an image
+	 * 
+	 * @return The image, or null if GDAL could not read the data
+	 */
+	public BufferedImage read(Dataset ds, int xoff, int yoff, int xsize,
+			int ysize, int width, int height) {
+		boolean transparent = m_alpha || m_kind == Kind.PALETTE
+				|| (m_kind == Kind.SCALED && !Float.isNaN(m_noData[0]));
+		BufferedImage img = new BufferedImage(width, height,
+				transparent ? BufferedImage.TYPE_INT_ARGB
+						: BufferedImage.TYPE_INT_RGB);
+		int[] argb = ((DataBufferInt) img.getRaster().getDataBuffer())
+				.getData();
+		int pixels = width * height;
+
+		int err;
+		switch (m_kind) {
+		case BYTE: {
+			// Pixel interleaved, spacing is in bytes
+			int nb = m_bands.length;
+			byte[] buf = new byte[pixels * nb];
+			err = ds.ReadRaster(xoff, yoff, xsize, ysize, width, height,
+					gdalconstConstants.GDT_Byte, buf, m_bands, nb, nb * width,
+					1);
+			if (err == gdalconstConstants.CE_None) {
+				ParallelRows.run(width, height, new ByteKernel(buf, argb,
+						width));
+			}
+			break;
+		}
+		case PALETTE: {
+			int[] buf = new int[pixels];
+			err = ds.ReadRaster(xoff, yoff, xsize, ysize, width, height,
+					gdalconstConstants.GDT_Int32, buf, new int[] { m_bands[0] });
+			if (err == gdalconstConstants.CE_None) {
+				ParallelRows.run(width, height, new PaletteKernel(buf, argb,
+						width));
+			}
+			break;
+		}
+		default: {
+			int nb = m_bands.length;
+			float[] buf = new float[pixels * nb];
+			err = ds.ReadRaster(xoff, yoff, xsize, ysize, width, height,
+					gdalconstConstants.GDT_Float32, buf, m_bands, 4 * nb, 4
+							* nb * width, 4);
+			if (err == gdalconstConstants.CE_None) {
+				ParallelRows.run(width, height, new ScaledKernel(buf, argb,
+						width));
+			}
+			break;
+		}
+		}
+
+		if (err != gdalconstConstants.CE_None) {
+			GDALTools.printLastError();
+			return null;
+		}
+		return img;
+	}
+
+	/**
+	 * @return Value range of a band: stored statistics if present, an
+	 *         approximation computed by GDAL otherwise
+	 */
+	static double[] getRange(Band band) {
+		Double[] min = new Double[1];
+		Double[] max = new Double[1];
+		band.GetMinimum(min);
+		band.GetMaximum(max);
+		if (min[0] != null && max[0] != null) {
+			return new double[] { min[0], max[0] };
+		}
+		double[] range = new double[2];
+		band.ComputeRasterMinMax(range, 1);
+		return range;
+	}
+
+	/**
+	 * Converts a range of rows into the packed pixels of the image
+	 */
+	private abstract static class Kernel implements ParallelRows.Body {
+		final int[] m_argb;
+		final int m_width;
+
+		Kernel(int[] argb, int width) {
+			m_argb = argb;
+			m_width = width;
+		}
+
+		public void run(int y0, int y1) {
+			convert(y0 * m_width, y1 * m_width);
+		}
+
+		/**
+		 * Converts the pixels from index from (inclusive) to index to
+		 * (exclusive)
+		 */
+		abstract void convert(int from, int to);
+	}
+
+	/**
+	 * 8 bit grey, grey with alpha, RGB or RGBA
+	 */
+	private class ByteKernel extends Kernel {
+		final byte[] m_src;
+
+		ByteKernel(byte[] src, int[] argb, int width) {
+			super(argb, width);
+			m_src = src;
+		}
+
+		@Override
+		void convert(int from, int to) {
+			byte[] s = m_src;
+			int[] d = m_argb;
+			if (m_bands.length == 1) {
+				for (int i = from; i < to; i++) {
+					d[i] = 0xff000000 | (s[i] & 0xff) * 0x010101;
+				}
+			} else if (m_bands.length == 2) {
+				for (int i = from, j = 2 * from; i < to; i++, j += 2) {
+					d[i] = (s[j + 1] & 0xff) << 24 | (s[j] & 0xff) * 0x010101;
+				}
+			} else if (m_bands.length == 3) {
+				for (int i = from, j = 3 * from; i < to; i++, j += 3) {
+					d[i] = 0xff000000 | (s[j] & 0xff) << 16
+							| (s[j + 1] & 0xff) << 8 | (s[j + 2] & 0xff);
+				}
+			} else {
+				for (int i = from, j = 4 * from; i < to; i++, j += 4) {
+					d[i] = (s[j + 3] & 0xff) << 24 | (s[j] & 0xff) << 16
+							| (s[j + 1] & 0xff) << 8 | (s[j + 2] & 0xff);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Palette lookup, values outside the palette become transparent
+	 */
+	private class PaletteKernel extends Kernel {
+		final int[] m_src;
+
+		PaletteKernel(int[] src, int[] argb, int width) {
+			super(argb, width);
+			m_src = src;
+		}
+
+		@Override
+		void convert(int from, int to) {
+			int[] s = m_src;
+			int[] d = m_argb;
+			int[] lut = m_palette;
+			for (int i = from; i < to; i++) {
+				int v = s[i];
+				d[i] = v >= 0 && v < lut.length ? lut[v] : 0;
+			}
+		}
+	}
+
+	/**
+	 * Any other data type, linearly scaled to 8 bit per band. No data
+	 * becomes transparent.
+	 */
+	private class ScaledKernel extends Kernel {
+		final float[] m_src;
+
+		ScaledKernel(float[] src, int[] argb, int width) {
+			super(argb, width);
+			m_src = src;
+		}
+
+		@Override
+		void convert(int from, int to) {
+			float[] s = m_src;
+			int[] d = m_argb;
+			int nb = m_bands.length;
+			int colours = m_alpha ? nb - 1 : nb;
+			float o0 = m_offset[0], f0 = m_factor[0], nd0 = m_noData[0];
+			if (colours == 1) {
+				for (int i = from, j = nb * from; i < to; i++, j += nb) {
+					float v = s[j];
+					int alpha = v == nd0 || v != v ? 0 : 0xff;
+					if (m_alpha) {
+						alpha = Math.min(alpha, scale(s[j + 1],
+								m_offset[1], m_factor[1]));
+					}
+					d[i] = alpha << 24 | scale(v, o0, f0) * 0x010101;
+				}
+			} else {
+				float o1 = m_offset[1], f1 = m_factor[1];
+				float o2 = m_offset[2], f2 = m_factor[2];
+				for (int i = from, j = nb * from; i < to; i++, j += nb) {
+					float v = s[j];
+					int alpha = v == nd0 || v != v ? 0 : 0xff;
+					if (m_alpha) {
+						alpha = Math.min(alpha, scale(s[j + 3],
+								m_offset[3], m_factor[3]));
+					}
+					d[i] = alpha << 24 | scale(v, o0, f0) << 16
+							| scale(s[j + 1], o1, f1) << 8
+							| scale(s[j + 2], o2, f2);
+				}
+			}
+		}
+	}
+
+	private static int scale(float v, float offset, float factor) {
+		int s = (int) ((v - offset) * factor + 0.5f);
+		return s < 0 ? 0 : (s > 255 ? 255 : s);
+	}
+}
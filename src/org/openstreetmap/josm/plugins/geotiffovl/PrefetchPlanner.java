@@ -0,0 +1,232 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+
+/**
+ * Guesses which tiles will be needed next from the recent movement of the map
+ * view
+ * 
+ * Every paint feeds the current view center and scale. From the samples of the
+ * last half second the planner derives pan and zoom speed and requests, at
+ * prefetch priorities, the tiles just outside the view in the direction of
+ * movement as well as the visible area in the next finer and coarser level.
+ */
+public class PrefetchPlanner {
+
+	/**
+	 * Only samples this recent are used to determine the speed
+	 */
+	private static final long SAMPLE_WINDOW_MS = 500;
+	/**
+	 * Upper limit for the number of tile rows/columns fetched ahead
+	 */
+	private static final int MAX_TILES_AHEAD = 4;
+	/**
+	 * Upper limit for the number of tiles prefetched from the finer level
+	 */
+	private static final int MAX_FINER_TILES = 64;
+
+	private static class Sample {
+		final long m_time;
+		final double m_east;
+		final double m_north;
+		final double m_scale;
+
+		Sample(long time, EastNorth center, double scale) {
+			m_time = time;
+			m_east = center.east();
+			m_north = center.north();
+			m_scale = scale;
+		}
+	}
+
+	private static class Candidate {
+		final TileKey m_key;
+		final int m_distance;
+
+		Candidate(TileKey key, int distance) {
+			m_key = key;
+			m_distance = distance;
+		}
+	}
+
+	private final LinkedList<Sample> m_samples = new LinkedList<Sample>();
+	/**
+	 * How many seconds of movement to prefetch ahead
+	 */
+	private final double m_lookahead;
+
+	/**
+	 * @param lookahead
+	 *            Seconds of movement to prefetch ahead
+	 */
+	public PrefetchPlanner(double lookahead) {
+		m_lookahead = lookahead;
+	}
+
+	/**
+	 * Records the current state of the view
+	 * 
+	 * @param center
+	 *            Center of the view in projected coordinates
+	 * @param scale
+	 *            Map units per screen pixel
+	 */
+	public void addSample(EastNorth center, double scale) {
+		long now = System.currentTimeMillis();
+		m_samples.addLast(new Sample(now, center, scale));
+		while (m_samples.size() > 2
+				&& now - m_samples.getFirst().m_time > SAMPLE_WINDOW_MS) {
+			m_samples.removeFirst();
+		}
+	}
+
+	/**
+	 * Requests the tiles that will probably be needed next
+	 * 
+	 * @param source
+	 *            Tile source of the layer
+	 * @param level
+	 *            Level currently displayed
+	 * @param visible
+	 *            Visible tile columns and rows of that level
+	 * @param loader
+	 *            Loader to send the requests to
+	 */
+	public void plan(TileSource source, int level, Rectangle visible,
+			TileLoader loader) {
+		if (visible.isEmpty()) {
+			return;
+		}
+
+		double[] gt = source.getGeoTransform();
+		double span = source.getTileSize() << level;
+		double colsPerSec = 0, rowsPerSec = 0, levelsPerSec = 0;
+		if (m_samples.size() >= 2) {
+			Sample first = m_samples.getFirst();
+			Sample last = m_samples.getLast();
+			double dt = (last.m_time - first.m_time) / 1000.0;
+			if (dt > 0) {
+				colsPerSec = (last.m_east - first.m_east) / gt[1] / span / dt;
+				rowsPerSec = (last.m_north - first.m_north) / gt[5] / span
+						/ dt;
+				levelsPerSec = Math.log(last.m_scale / first.m_scale)
+						/ Math.log(2.0) / dt;
+			}
+		}
+
+		// Strip ahead of the view in the direction of movement
+		int aheadCols = tilesAhead(colsPerSec);
+		int aheadRows = tilesAhead(rowsPerSec);
+		if (aheadCols != 0 || aheadRows != 0) {
+			Rectangle ahead = new Rectangle(visible);
+			ahead.add(new Rectangle(visible.x + aheadCols, visible.y
+					+ aheadRows, visible.width, visible.height));
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			for (int row = ahead.y; row < ahead.y + ahead.height; row++) {
+				for (int col = ahead.x; col < ahead.x + ahead.width; col++) {
+					if (!visible.contains(col, row)) {
+						candidates.add(new Candidate(new TileKey(level, col,
+								row), distance(visible, col, row)));
+					}
+				}
+			}
+			Collections.sort(candidates, new Comparator<Candidate>() {
+				public int compare(Candidate a, Candidate b) {
+					return a.m_distance - b.m_distance;
+				}
+			});
+			for (Candidate c : candidates) {
+				loader.request(c.m_key, TileLoader.PRIORITY_AHEAD);
+			}
+		}
+
+		// Adjacent levels, the one we are zooming towards first. Without
+		// zooming the coarser level wins: it is cheap and serves as fallback.
+		boolean zoomingIn = levelsPerSec < -0.1;
+		if (level < source.getMaxLevel()) {
+			requestCoarser(level, visible, loader,
+					zoomingIn ? TileLoader.PRIORITY_IDLE
+							: TileLoader.PRIORITY_ZOOM);
+		}
+		if (level > 0) {
+			requestFiner(level, visible, loader,
+					zoomingIn ? TileLoader.PRIORITY_ZOOM
+							: TileLoader.PRIORITY_IDLE);
+		}
+	}
+
+	private int tilesAhead(double tilesPerSec) {
+		double ahead = tilesPerSec * m_lookahead;
+		if (Math.abs(ahead) < 0.05) {
+			return 0;
+		}
+		int n = Math.min(MAX_TILES_AHEAD, (int) Math.ceil(Math.abs(ahead)));
+		return ahead > 0 ? n : -n;
+	}
+
+	private void requestCoarser(int level, Rectangle visible,
+			TileLoader loader, int priority) {
+		int col0 = visible.x >> 1, row0 = visible.y >> 1;
+		int col1 = (visible.x + visible.width - 1) >> 1;
+		int row1 = (visible.y + visible.height - 1) >> 1;
+		for (int row = row0; row <= row1; row++) {
+			for (int col = col0; col <= col1; col++) {
+				loader.request(new TileKey(level + 1, col, row), priority);
+			}
+		}
+	}
+
+	private void requestFiner(int level, Rectangle visible, TileLoader loader,
+			int priority) {
+		Rectangle finer = new Rectangle(visible.x * 2, visible.y * 2,
+				visible.width * 2, visible.height * 2);
+		// Keep the center if the whole area would be too much
+		while (finer.width * finer.height > MAX_FINER_TILES) {
+			if (finer.width >= finer.height) {
+				finer.x++;
+				finer.width -= 2;
+			} else {
+				finer.y++;
+				finer.height -= 2;
+			}
+		}
+		for (int row = finer.y; row < finer.y + finer.height; row++) {
+			for (int col = finer.x; col < finer.x + finer.width; col++) {
+				loader.request(new TileKey(level - 1, col, row), priority);
+			}
+		}
+	}
+
+	/**
+	 * Chessboard distance of a tile to a rectangle of tiles
+	 */
+	private static int distance(Rectangle r, int col, int row) {
+		int dx = Math.max(0, Math.max(r.x - col, col - (r.x + r.width - 1)));
+		int dy = Math.max(0, Math.max(r.y - row, row - (r.y + r.height - 1)));
+		return Math.max(dx, dy);
+	}
+}
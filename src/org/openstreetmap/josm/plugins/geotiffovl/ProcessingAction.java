@@ -0,0 +1,100 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+
+import javax.swing.AbstractAction;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+
+import org.openstreetmap.josm.Main;
+
+/**
+ * Lets the user edit the processing steps applied to the tiles of a layer
+ */
+public class ProcessingAction extends AbstractAction {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	/**
+	 * Needed for serialization
+	 */
+	private static final long serialVersionUID = -4411290632760719374L;
+
+	private final GDALRasterLayer m_layer;
+
+	public ProcessingAction(GDALRasterLayer layer) {
+		super(tr("Processing..."));
+		m_layer = layer;
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		// Processing belongs to the layer. The last one used elsewhere is
+		// only offered as a start.
+		TilePipeline current = m_layer.getPipeline();
+		JTextField spec = new JTextField(current != null ? current.getSpec()
+				: Main.pref.get("geotiffovl.pipeline", ""), 40);
+		JLabel help = new JLabel(tr("<html>Steps separated by '';'', applied in order:<br>"
+				+ "bands:4,3,2 &nbsp; bands:nd(4,3) &nbsp; bands:0.5*1+0.5*2<br>"
+				+ "stretch &nbsp; stretch:low,high<br>"
+				+ "ramp:{0}[,low,high]<br>"
+				+ "hillshade[:azimuth,altitude,zfactor]<br>"
+				+ "Example: ramp:terrain;hillshade</html>", join(ColorRampStage
+				.getNames())));
+		JPanel panel = new JPanel(new BorderLayout(0, 8));
+		panel.add(help, BorderLayout.CENTER);
+		panel.add(spec, BorderLayout.SOUTH);
+
+		while (true) {
+			if (JOptionPane.showConfirmDialog(Main.parent, panel,
+					tr("Processing"), JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+				return;
+			}
+			try {
+				TilePipeline pipeline = TilePipeline.parse(spec.getText());
+				pipeline.check(m_layer.getProcessedBandCount());
+				m_layer.setPipeline(pipeline);
+				Main.pref.put("geotiffovl.pipeline", pipeline.getSpec());
+				break;
+			} catch (IllegalArgumentException ex) {
+				JOptionPane.showMessageDialog(Main.parent, ex.getMessage(),
+						tr("Processing"), JOptionPane.ERROR_MESSAGE);
+			}
+		}
+		if (Main.map != null && Main.map.mapView != null) {
+			Main.map.mapView.repaint();
+		}
+	}
+
+	private static String join(String[] names) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			buf.append(i > 0 ? "|" : "").append(names[i]);
+		}
+		return buf.toString();
+	}
+}
@@ -0,0 +1,257 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server that lets GDAL read {@link RemoteRaster}s
+ * 
+ * GDAL's /vsicurl/ handler reads remote files with HTTP range requests. By
+ * pointing it at this server on the loopback interface instead of the real
+ * server, every read goes through the block cache of the remote file, so
+ * repeated views and restarts don't fetch the same bytes again.
+ * 
+ * Supports HEAD, single and multiple ranges (multipart/byteranges).
+ * 
+ * Rasters are served under an unguessable random path, and requests naming
+ * any other host than the loopback address are refused. Other local
+ * programs, or web pages rebinding a DNS name to the loopback address, thus
+ * cannot read the rasters the user opened.
+ */
+public class RangeCacheProxy {
+
+	private static final String CONTEXT = "/r/";
+	private static final int CHUNK_SIZE = 256 * 1024;
+
+	private static RangeCacheProxy s_instance = null;
+
+	private final HttpServer m_server;
+	private final Map<String, RemoteRaster> m_rasters = new HashMap<String, RemoteRaster>();
+	private final SecureRandom m_random = new SecureRandom();
+
+	/**
+	 * @return The proxy, started on first use
+	 */
+	public static synchronized RangeCacheProxy getInstance()
+			throws IOException {
+		if (s_instance == null) {
+			s_instance = new RangeCacheProxy();
+		}
+		return s_instance;
+	}
+
+	private RangeCacheProxy() throws IOException {
+		m_server = HttpServer.create(new InetSocketAddress(InetAddress
+				.getByName("127.0.0.1"), 0), 0);
+		m_server.createContext(CONTEXT, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		m_server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "geotiffovl-range-proxy");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+		m_server.start();
+	}
+
+	/**
+	 * Makes a remote raster available to GDAL
+	 * 
+	 * @return Path to open with gdal.Open()
+	 */
+	public String register(RemoteRaster raster) {
+		return "/vsicurl/" + registerUrl(raster);
+	}
+
+	/**
+	 * Like {@link #register(RemoteRaster)}, but returns the plain http URL
+	 */
+	public synchronized String registerUrl(RemoteRaster raster) {
+		// 128 random bits as the id, so that it cannot be guessed
+		String id = new BigInteger(128, m_random).toString(36);
+		m_rasters.put(id, raster);
+		return "http://" + getHost() + CONTEXT + id + "/"
+				+ raster.getFileName();
+	}
+
+	/**
+	 * Stops serving a remote raster once and releases it, see
+	 * {@link RemoteRaster#release()}
+	 */
+	public synchronized void unregister(RemoteRaster raster) {
+		if (m_rasters.values().remove(raster)) {
+			raster.release();
+		}
+	}
+
+	/**
+	 * @return Value of the Host header of requests to this proxy
+	 */
+	private String getHost() {
+		return "127.0.0.1:" + m_server.getAddress().getPort();
+	}
+
+	private synchronized RemoteRaster lookup(String path) {
+		// Path is /r/<id>/<file name>
+		String[] parts = path.substring(CONTEXT.length()).split("/");
+		if (parts.length != 2) {
+			return null;
+		}
+		RemoteRaster raster = m_rasters.get(parts[0]);
+		if (raster == null || !raster.getFileName().equals(parts[1])) {
+			// GDAL probes for side car files, which we don't have
+			return null;
+		}
+		return raster;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		if (!getHost().equals(exchange.getRequestHeaders().getFirst("Host"))) {
+			exchange.sendResponseHeaders(403, -1);
+			return;
+		}
+		RemoteRaster raster = lookup(exchange.getRequestURI().getPath());
+		String method = exchange.getRequestMethod();
+		if (raster == null) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		long length = raster.getLength();
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+		if (method.equals("HEAD")) {
+			exchange.getResponseHeaders().set("Content-Length",
+					Long.toString(length));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		if (!method.equals("GET")) {
+			exchange.sendResponseHeaders(405, -1);
+			return;
+		}
+
+		List<long[]> ranges = parseRanges(exchange.getRequestHeaders()
+				.getFirst("Range"), length);
+		if (ranges == null) {
+			exchange.sendResponseHeaders(200, length);
+			OutputStream out = exchange.getResponseBody();
+			copy(raster, 0, length, out);
+			out.close();
+		} else if (ranges.isEmpty()) {
+			exchange.getResponseHeaders().set("Content-Range",
+					"bytes */" + length);
+			exchange.sendResponseHeaders(416, -1);
+		} else if (ranges.size() == 1) {
+			long[] r = ranges.get(0);
+			exchange.getResponseHeaders().set("Content-Range",
+					"bytes " + r[0] + "-" + r[1] + "/" + length);
+			exchange.sendResponseHeaders(206, r[1] - r[0] + 1);
+			OutputStream out = exchange.getResponseBody();
+			copy(raster, r[0], r[1] + 1, out);
+			out.close();
+		} else {
+			String boundary = "geotiffovl" + System.nanoTime();
+			exchange.getResponseHeaders().set("Content-Type",
+					"multipart/byteranges; boundary=" + boundary);
+			exchange.sendResponseHeaders(206, 0);
+			OutputStream out = exchange.getResponseBody();
+			for (long[] r : ranges) {
+				out.write(("\r\n--" + boundary + "\r\n"
+						+ "Content-Type: application/octet-stream\r\n"
+						+ "Content-Range: bytes " + r[0] + "-" + r[1] + "/"
+						+ length + "\r\n\r\n").getBytes("US-ASCII"));
+				copy(raster, r[0], r[1] + 1, out);
+			}
+			out.write(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+			out.close();
+		}
+	}
+
+	/**
+	 * Parses a Range header into inclusive byte ranges
+	 * 
+	 * @return null if the whole file is requested, an empty list if no range
+	 *         is satisfiable
+	 */
+	static List<long[]> parseRanges(String header, long length) {
+		if (header == null || !header.startsWith("bytes=")) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (String spec : header.substring(6).split(",")) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				continue;
+			}
+			long start, end;
+			try {
+				if (dash == 0) {
+					// Suffix range: the last n bytes
+					start = Math.max(0, length
+							- Long.parseLong(spec.substring(1)));
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					end = dash == spec.length() - 1 ? length - 1 : Math.min(
+							Long.parseLong(spec.substring(dash + 1)),
+							length - 1);
+				}
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (start <= end && start < length) {
+				ranges.add(new long[] { start, end });
+			}
+		}
+		return ranges;
+	}
+
+	private static void copy(RemoteRaster raster, long from, long to,
+			OutputStream out) throws IOException {
+		byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, Math.max(0, to - from))];
+		for (long pos = from; pos < to; pos += buf.length) {
+			int len = (int) Math.min(buf.length, to - pos);
+			raster.read(pos, buf, 0, len);
+			out.write(buf, 0, len);
+		}
+	}
+}
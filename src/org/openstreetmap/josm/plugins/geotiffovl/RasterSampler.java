@@ -0,0 +1,272 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.Transformer;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+import org.gdal.gdalconst.gdalconstConstants;
+import org.gdal.osr.CoordinateTransformation;
+import org.gdal.osr.SpatialReference;
+
+/**
+ * Reads raster values at many points, e.g. DEM elevations for OSM nodes
+ * 
+ * Values come from the source dataset at native resolution. The points are
+ * transformed to the dataset's coordinate system and pixel grid in bulk, then
+ * sorted by the block of the raster they fall into. Every block touched is
+ * read exactly once, so sampling cost depends on the number of distinct
+ * blocks rather than the number of points or the size of the raster. A block
+ * with a single point in it is read as a 1x1 window, which spares copying
+ * and converting the whole block for e.g. a cursor readout.
+ * 
+ * Images georeferenced by control points are sampled through GDAL's GCP
+ * transformer, like the warped dataset that displays them.
+ * 
+ * The sampler uses its own handle of the dataset, so it can be used while
+ * tiles are loaded in the background. It is not thread-safe itself.
+ */
+public class RasterSampler {
+
+	private final Dataset m_dataset;
+	private final CoordinateTransformation m_transform;
+	private final double[] m_invGeoTransform;
+	/**
+	 * Maps coordinates to pixels for images with control points, null for
+	 * images with a geotransform only
+	 */
+	private final Transformer m_gcpTransformer;
+	private final int m_xsize;
+	private final int m_ysize;
+	private final int m_blockXSize;
+	private final int m_blockYSize;
+
+	/**
+	 * @param source
+	 *            Dataset to sample, is opened again for this sampler
+	 * @param pointSR
+	 *            Coordinate system of the points to sample
+	 */
+	public RasterSampler(Dataset source, SpatialReference pointSR) {
+		m_dataset = gdal.Open(source.GetDescription(), gdalconst.GA_ReadOnly);
+		if (m_dataset == null) {
+			throw new IllegalArgumentException("Cannot open "
+					+ source.GetDescription() + ": " + gdal.GetLastErrorMsg());
+		}
+
+		String wkt = m_dataset.GetProjectionRef();
+		if (m_dataset.GetGCPCount() > 0) {
+			// Picks the geotransform if there is one, the GCPs otherwise
+			m_gcpTransformer = new Transformer(m_dataset, null,
+					new Vector<String>());
+			if (wkt == null || wkt.length() == 0) {
+				wkt = m_dataset.GetGCPProjection();
+			}
+		} else {
+			m_gcpTransformer = null;
+		}
+		SpatialReference srcSR = new SpatialReference(wkt);
+		m_transform = srcSR.IsSame(pointSR) != 0 ? null
+				: new CoordinateTransformation(pointSR, srcSR);
+		m_invGeoTransform = GDALTools.invertGeoTransform(m_dataset
+				.GetGeoTransform());
+		m_xsize = m_dataset.getRasterXSize();
+		m_ysize = m_dataset.getRasterYSize();
+
+		int[] bx = new int[1], by = new int[1];
+		m_dataset.GetRasterBand(1).GetBlockSize(bx, by);
+		m_blockXSize = Math.max(1, bx[0]);
+		m_blockYSize = Math.max(1, by[0]);
+	}
+
+	public int getBandCount() {
+		return m_dataset.getRasterCount();
+	}
+
+	/**
+	 * Samples one band at one point, e.g. for a cursor readout
+	 * 
+	 * @return The value, NaN if outside the raster, no data or not finite
+	 */
+	public double sample(double x, double y, int band) {
+		return sample(new double[] { x }, new double[] { y },
+				new int[] { band })[0][0];
+	}
+
+	/**
+	 * Samples bands at many points
+	 * 
+	 * @param xs
+	 *            X coordinates (e.g. east) of the points
+	 * @param ys
+	 *            Y coordinates (e.g. north) of the points
+	 * @param bands
+	 *            Bands to sample, 1-based
+	 * @return Values indexed by [band][point], NaN where the point is outside
+	 *         the raster, the band has no data or the value is not finite
+	 */
+	public double[][] sample(double[] xs, double[] ys, int[] bands) {
+		int n = xs.length;
+		double[][] values = new double[bands.length][n];
+		for (double[] v : values) {
+			Arrays.fill(v, Double.NaN);
+		}
+
+		// Transform all points to the dataset's coordinate system at once
+		double[] px = new double[n], py = new double[n];
+		if (m_transform != null) {
+			double[][] points = new double[n][];
+			for (int i = 0; i < n; i++) {
+				points[i] = new double[] { xs[i], ys[i], 0 };
+			}
+			m_transform.TransformPoints(points);
+			for (int i = 0; i < n; i++) {
+				px[i] = points[i][0];
+				py[i] = points[i][1];
+			}
+		} else {
+			System.arraycopy(xs, 0, px, 0, n);
+			System.arraycopy(ys, 0, py, 0, n);
+		}
+
+		// Pixel positions
+		if (m_gcpTransformer != null) {
+			double[][] points = new double[n][];
+			for (int i = 0; i < n; i++) {
+				points[i] = new double[] { px[i], py[i], 0 };
+			}
+			int[] ok = new int[n];
+			m_gcpTransformer.TransformPoints(1, points, ok);
+			for (int i = 0; i < n; i++) {
+				px[i] = ok[i] != 0 ? points[i][0] : Double.NaN;
+				py[i] = ok[i] != 0 ? points[i][1] : Double.NaN;
+			}
+		} else {
+			double[] g = m_invGeoTransform;
+			for (int i = 0; i < n; i++) {
+				double x = px[i];
+				px[i] = g[0] + x * g[1] + py[i] * g[2];
+				py[i] = g[3] + x * g[4] + py[i] * g[5];
+			}
+		}
+
+		// Block keys. The key sorts points by block and carries the point
+		// index in its lower half.
+		int blocksPerRow = (m_xsize + m_blockXSize - 1) / m_blockXSize;
+		int[] col = new int[n], row = new int[n];
+		long[] keys = new long[n];
+		int inside = 0;
+		for (int i = 0; i < n; i++) {
+			double x = px[i];
+			double y = py[i];
+			if (!(x >= 0 && x < m_xsize && y >= 0 && y < m_ysize)) {
+				continue;
+			}
+			col[i] = (int) x;
+			row[i] = (int) y;
+			long block = (long) (row[i] / m_blockYSize) * blocksPerRow
+					+ col[i] / m_blockXSize;
+			keys[inside++] = (block << 32) | i;
+		}
+		Arrays.sort(keys, 0, inside);
+
+		double[] noData = new double[bands.length];
+		for (int b = 0; b < bands.length; b++) {
+			Double[] nd = new Double[1];
+			Band band = m_dataset.GetRasterBand(bands[b]);
+			band.GetNoDataValue(nd);
+			noData[b] = nd[0] != null ? nd[0] : Double.NaN;
+		}
+
+		// One read per block, all requested bands at once. A lone point only
+		// reads its own pixel.
+		double[] buf = null;
+		int start = 0;
+		while (start < inside) {
+			long block = keys[start] >>> 32;
+			int end = start;
+			while (end < inside && (keys[end] >>> 32) == block) {
+				end++;
+			}
+
+			int bx0, by0, w, h;
+			if (end - start == 1) {
+				int i = (int) (keys[start] & 0xffffffffL);
+				bx0 = col[i];
+				by0 = row[i];
+				w = 1;
+				h = 1;
+			} else {
+				bx0 = (int) (block % blocksPerRow) * m_blockXSize;
+				by0 = (int) (block / blocksPerRow) * m_blockYSize;
+				w = Math.min(m_blockXSize, m_xsize - bx0);
+				h = Math.min(m_blockYSize, m_ysize - by0);
+			}
+			int plane = w * h;
+			if (buf == null || buf.length < plane * bands.length) {
+				buf = new double[plane * bands.length];
+			}
+			int err = m_dataset.ReadRaster(bx0, by0, w, h, w, h,
+					gdalconstConstants.GDT_Float64, buf, bands);
+			if (err == gdalconstConstants.CE_None) {
+				for (int k = start; k < end; k++) {
+					int i = (int) (keys[k] & 0xffffffffL);
+					int offset = (row[i] - by0) * w + (col[i] - bx0);
+					for (int b = 0; b < bands.length; b++) {
+						double v = buf[b * plane + offset];
+						if (v != noData[b] && !Double.isInfinite(v)) {
+							values[b][i] = v;
+						}
+					}
+				}
+			} else {
+				GDALTools.printLastError();
+			}
+			start = end;
+		}
+		return values;
+	}
+
+	/**
+	 * Formats a sampled value for a tag: integers without decimals, anything
+	 * else rounded to two decimals, always with a decimal point
+	 * 
+	 * @param v
+	 *            Finite value, as returned by {@link #sample}
+	 */
+	public static String formatValue(double v) {
+		return BigDecimal.valueOf(v).setScale(2, RoundingMode.HALF_UP)
+				.stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * Closes the sampler's handle of the dataset
+	 */
+	public void dispose() {
+		if (m_gcpTransformer != null) {
+			m_gcpTransformer.delete();
+		}
+		m_dataset.delete();
+	}
+}
@@ -0,0 +1,452 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A raster file on a web server or object store, read with HTTP range
+ * requests through a {@link BlockCache}
+ * 
+ * Reads are widened to whole blocks. Missing blocks that are adjacent, or only
+ * separated by a small gap, are fetched with a single range request, which
+ * suits the layout of Cloud-Optimized GeoTIFFs where the blocks of a window
+ * lie close together.
+ * 
+ * Reads may come from several threads at once. Blocks are fetched without
+ * holding a lock, so reads of cached blocks never wait for the server; a
+ * block being fetched by one thread is waited for, not fetched again, by
+ * the others. All users of a URL share one instance, and with it the cache.
+ */
+public class RemoteRaster {
+
+	/**
+	 * Open instances by URL
+	 */
+	private static final Map<String, RemoteRaster> s_open = new HashMap<String, RemoteRaster>();
+
+	private final URL m_url;
+	private final String m_fileName;
+	private final File m_cacheDir;
+	private final BlockCache m_cache;
+	/**
+	 * Gaps of up to this many missing blocks are fetched along with their
+	 * neighbours rather than costing another request
+	 */
+	private final int m_maxGapBlocks;
+	/**
+	 * Blocks some thread is fetching right now
+	 */
+	private final BitSet m_fetching = new BitSet();
+	/**
+	 * Number of {@link #open} calls not yet matched by {@link #release()}
+	 */
+	private int m_users = 0;
+
+	private long m_upstreamRequests = 0;
+	private long m_upstreamBytes = 0;
+	private long m_reads = 0;
+	private long m_readBytes = 0;
+
+	/**
+	 * Returns the instance for a URL, creating it if this is the first user.
+	 * Every call must be matched by a call of {@link #release()}.
+	 * 
+	 * @param url
+	 *            http(s) URL of the file
+	 * @param cacheRoot
+	 *            Directory holding the block caches of all remote files
+	 * @param blockSize
+	 *            Size of a cache block in bytes
+	 * @param maxGapBlocks
+	 *            Largest gap of cached blocks to fetch over
+	 * @param maxCacheBytes
+	 *            Size limit of the block cache of this file, and of the
+	 *            caches of other files in cacheRoot that are not open
+	 * @throws IOException
+	 *             If the server cannot be reached or does not tell the size
+	 *             of the file
+	 */
+	public static RemoteRaster open(URL url, File cacheRoot, int blockSize,
+			int maxGapBlocks, long maxCacheBytes) throws IOException {
+		synchronized (s_open) {
+			RemoteRaster raster = s_open.get(url.toString());
+			if (raster == null) {
+				List<File> inUse = new ArrayList<File>();
+				for (RemoteRaster r : s_open.values()) {
+					inUse.add(r.m_cacheDir);
+				}
+				inUse.add(cacheDir(cacheRoot, url));
+				BlockCache.trim(cacheRoot, maxCacheBytes, inUse);
+				raster = new RemoteRaster(url, cacheRoot, blockSize,
+						maxGapBlocks, maxCacheBytes);
+				s_open.put(url.toString(), raster);
+			}
+			raster.m_users++;
+			return raster;
+		}
+	}
+
+	/**
+	 * Determines size and version of the remote file and opens its block
+	 * cache
+	 */
+	private RemoteRaster(URL url, File cacheRoot, int blockSize,
+			int maxGapBlocks, long maxCacheBytes) throws IOException {
+		m_url = url;
+		m_maxGapBlocks = maxGapBlocks;
+
+		String path = url.getPath();
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		m_fileName = name.length() > 0 ? name : "remote.tif";
+
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("HEAD");
+		int status = conn.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			throw new IOException("HEAD " + url + " failed: " + status + " "
+					+ conn.getResponseMessage());
+		}
+		long length = conn.getContentLengthLong();
+		String validator = conn.getHeaderField("ETag");
+		if (validator == null) {
+			validator = conn.getHeaderField("Last-Modified");
+		}
+		conn.disconnect();
+		if (length < 0) {
+			// No Content-Length, e.g. chunked, so ask for the first byte
+			length = probeLength(url);
+		}
+
+		m_cacheDir = cacheDir(cacheRoot, url);
+		m_cache = new BlockCache(m_cacheDir, length, validator != null
+				? validator : "", blockSize, maxCacheBytes);
+	}
+
+	private static File cacheDir(File cacheRoot, URL url) {
+		return new File(cacheRoot, hash(url.toString()));
+	}
+
+	/**
+	 * Asks for the first byte of the file and takes its size from the
+	 * Content-Range of the response
+	 */
+	private static long probeLength(URL url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestProperty("Range", "bytes=0-0");
+		try {
+			int status = conn.getResponseCode();
+			String range = conn.getHeaderField("Content-Range");
+			if (status == HttpURLConnection.HTTP_PARTIAL && range != null
+					&& range.lastIndexOf('/') >= 0) {
+				try {
+					return Long.parseLong(range.substring(
+							range.lastIndexOf('/') + 1).trim());
+				} catch (NumberFormatException e) {
+					// Size given as "*"
+				}
+			}
+			throw new IOException("Server does not tell the size of " + url
+					+ ", or does not support range requests (" + status
+					+ " " + conn.getResponseMessage() + ")");
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	public URL getUrl() {
+		return m_url;
+	}
+
+	/**
+	 * @return Last path component of the URL
+	 */
+	public String getFileName() {
+		return m_fileName;
+	}
+
+	public long getLength() {
+		return m_cache.getLength();
+	}
+
+	/**
+	 * Reads bytes of the remote file, fetching missing blocks first
+	 */
+	public void read(long pos, byte[] dst, int off, int len)
+			throws IOException {
+		if (pos < 0 || pos + len > getLength()) {
+			throw new IOException("Range " + pos + "+" + len
+					+ " is outside of " + m_url);
+		}
+		if (len == 0) {
+			return;
+		}
+		int bs = m_cache.getBlockSize();
+		long first = pos / bs;
+		long last = (pos + len - 1) / bs;
+		// Other reads may evict blocks before they are read, then fetch
+		// them again
+		int attempts = 0;
+		while (!fetchAndRead(first, last, pos, dst, off, len)) {
+			if (++attempts == 3) {
+				throw new IOException("Block cache too small to read " + pos
+						+ "+" + len + " of " + m_url);
+			}
+		}
+		synchronized (this) {
+			m_reads++;
+			m_readBytes += len;
+		}
+	}
+
+	/**
+	 * Fetches the missing blocks of a range and reads it from the cache
+	 * 
+	 * @return false if a block was evicted before it could be read
+	 */
+	private boolean fetchAndRead(long first, long last, long pos, byte[] dst,
+			int off, int len) throws IOException {
+		while (true) {
+			List<long[]> runs;
+			synchronized (this) {
+				runs = claimMissing(first, last);
+				if (runs.isEmpty()) {
+					if (m_fetching.get((int) first, (int) last + 1).isEmpty()) {
+						break;
+					}
+					// Others are fetching the rest, or gave up on it, in
+					// which case it is claimed on the next round
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					continue;
+				}
+			}
+			try {
+				for (long[] run : runs) {
+					fetch(run[0], run[1]);
+				}
+			} finally {
+				synchronized (this) {
+					for (long[] run : runs) {
+						for (long b = run[0]; b <= run[1]; b++) {
+							m_fetching.clear((int) b);
+						}
+					}
+					notifyAll();
+				}
+			}
+		}
+		return m_cache.read(pos, dst, off, len);
+	}
+
+	/**
+	 * Finds the missing blocks of a range nobody is fetching yet, coalescing
+	 * close runs, and marks them as being fetched
+	 * 
+	 * @return First and last block of every run
+	 */
+	private List<long[]> claimMissing(long first, long last) {
+		List<long[]> runs = new ArrayList<long[]>();
+		long runStart = -1, runEnd = -1;
+		for (long b = first; b <= last; b++) {
+			if (m_fetching.get((int) b)) {
+				// Never fetch over a block another thread is fetching
+				if (runStart >= 0) {
+					runs.add(new long[] { runStart, runEnd });
+					runStart = -1;
+				}
+				continue;
+			}
+			if (m_cache.has(b)) {
+				continue;
+			}
+			if (runStart >= 0 && b - runEnd - 1 > m_maxGapBlocks) {
+				runs.add(new long[] { runStart, runEnd });
+				runStart = -1;
+			}
+			if (runStart < 0) {
+				runStart = b;
+			}
+			runEnd = b;
+		}
+		if (runStart >= 0) {
+			runs.add(new long[] { runStart, runEnd });
+		}
+		for (long[] run : runs) {
+			for (long b = run[0]; b <= run[1]; b++) {
+				if (!m_cache.has(b)) {
+					m_fetching.set((int) b);
+				}
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Fetches a run of blocks with one range request. Blocks in the run that
+	 * are already cached are overwritten with identical data.
+	 */
+	private void fetch(long first, long last) throws IOException {
+		int bs = m_cache.getBlockSize();
+		long start = first * bs;
+		long end = Math.min((last + 1) * bs, getLength()) - 1;
+
+		HttpURLConnection conn = (HttpURLConnection) m_url.openConnection();
+		conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+		int status = conn.getResponseCode();
+		long skip;
+		if (status == HttpURLConnection.HTTP_PARTIAL) {
+			skip = 0;
+		} else if (status == HttpURLConnection.HTTP_OK) {
+			// Server ignores ranges and sends everything
+			skip = start;
+		} else {
+			throw new IOException("GET " + m_url + " [" + start + "-" + end
+					+ "] failed: " + status + " " + conn.getResponseMessage());
+		}
+		synchronized (this) {
+			m_upstreamRequests++;
+		}
+
+		InputStream in = conn.getInputStream();
+		long received = 0;
+		try {
+			while (skip > 0) {
+				long n = in.skip(skip);
+				if (n <= 0) {
+					throw new IOException("Short response from " + m_url);
+				}
+				received += n;
+				skip -= n;
+			}
+			byte[] block = new byte[bs];
+			for (long b = first; b <= last; b++) {
+				int len = (int) Math.min(bs, getLength() - b * bs);
+				int off = 0;
+				while (off < len) {
+					int n = in.read(block, off, len - off);
+					if (n < 0) {
+						throw new IOException("Short response from " + m_url);
+					}
+					off += n;
+				}
+				received += len;
+				m_cache.put(b, block, 0, len);
+			}
+		} finally {
+			in.close();
+			conn.disconnect();
+			synchronized (this) {
+				m_upstreamBytes += received;
+			}
+		}
+	}
+
+	/**
+	 * Gives up one use from {@link #open}. The last one closes the cache.
+	 */
+	public void release() {
+		synchronized (s_open) {
+			if (--m_users > 0) {
+				return;
+			}
+			s_open.remove(m_url.toString());
+		}
+		m_cache.close();
+	}
+
+	/**
+	 * @return Number of range requests sent to the server
+	 */
+	public synchronized long getUpstreamRequests() {
+		return m_upstreamRequests;
+	}
+
+	/**
+	 * @return Bytes received from the server
+	 */
+	public synchronized long getUpstreamBytes() {
+		return m_upstreamBytes;
+	}
+
+	/**
+	 * @return Number of reads served to GDAL
+	 */
+	public synchronized long getReads() {
+		return m_reads;
+	}
+
+	/**
+	 * @return Bytes served to GDAL, from the server or the cache
+	 */
+	public synchronized long getReadBytes() {
+		return m_readBytes;
+	}
+
+	/**
+	 * @return Blocks present in the local cache
+	 */
+	public int getCachedBlocks() {
+		return m_cache.getCachedBlocks();
+	}
+
+	public long getBlockCount() {
+		return m_cache.getBlockCount();
+	}
+
+	/**
+	 * @return Bytes present in the local cache
+	 */
+	public long getCachedBytes() {
+		return m_cache.getCachedBytes();
+	}
+
+	public long getMaxCacheBytes() {
+		return m_cache.getMaxBytes();
+	}
+
+	private static String hash(String s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(s.getBytes("UTF-8"));
+			StringBuilder buf = new StringBuilder();
+			for (byte b : digest) {
+				buf.append(String.format("%02x", b & 0xff));
+			}
+			return buf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.swing.AbstractAction;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+
+import org.openstreetmap.josm.Main;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.SequenceCommand;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+
+/**
+ * Tags the selected nodes with the raster value below them, e.g. "ele" from a
+ * DEM
+ */
+public class SampleToNodesAction extends AbstractAction {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	/**
+	 * Needed for serialization
+	 */
+	private static final long serialVersionUID = -1297459245815318472L;
+
+	private final GDALRasterLayer m_layer;
+
+	public SampleToNodesAction(GDALRasterLayer layer) {
+		super(tr("Tag selected nodes with raster values"));
+		m_layer = layer;
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		DataSet ds = Main.main.getCurrentDataSet();
+		Collection<Node> nodes = ds != null ? ds.getSelectedNodes() : null;
+		if (nodes == null || nodes.isEmpty()) {
+			JOptionPane.showMessageDialog(Main.parent,
+					tr("Please select the nodes to tag first."));
+			return;
+		}
+
+		// Ask for tag key and band
+		JTextField key = new JTextField(Main.pref.get(
+				"geotiffovl.sample.key", "ele"));
+		JSpinner band = new JSpinner(new SpinnerNumberModel(Math.min(
+				Main.pref.getInteger("geotiffovl.sample.band", 1), m_layer
+						.getBandCount()), 1, m_layer.getBandCount(), 1));
+		JPanel panel = new JPanel(new GridLayout(2, 2));
+		panel.add(new JLabel(tr("Tag key:")));
+		panel.add(key);
+		panel.add(new JLabel(tr("Band:")));
+		panel.add(band);
+		if (JOptionPane.showConfirmDialog(Main.parent, panel,
+				tr("Tag selected nodes with raster values"),
+				JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+			return;
+		}
+		String tag = key.getText().trim();
+		int bandNo = (Integer) band.getValue();
+		if (tag.length() == 0) {
+			return;
+		}
+		Main.pref.put("geotiffovl.sample.key", tag);
+		Main.pref.put("geotiffovl.sample.band", Integer.toString(bandNo));
+
+		// Nodes without coordinates have nothing below them
+		final List<Node> list = new ArrayList<Node>(nodes.size());
+		final List<EastNorth> points = new ArrayList<EastNorth>(nodes.size());
+		for (Node n : nodes) {
+			EastNorth en = n.isIncomplete() ? null : n.getEastNorth();
+			if (en != null) {
+				list.add(n);
+				points.add(en);
+			}
+		}
+		final int skipped = nodes.size() - list.size();
+		final String tagKey = tag;
+		final int sampleBand = bandNo;
+
+		// Sample all nodes at once, reading the raster may take a while
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				long start = System.currentTimeMillis();
+				final double[] values;
+				try {
+					values = m_layer.sample(points, sampleBand);
+				} catch (RuntimeException e) {
+					e.printStackTrace(System.err);
+					showMessage(tr("Could not sample the image:\n{0}", e
+							.getMessage()));
+					return;
+				}
+				final long millis = System.currentTimeMillis() - start;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						tag(list, values, tagKey, skipped, millis);
+					}
+				});
+			}
+		}, "geotiffovl-sample");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Adds the tags as one undoable command, on the event dispatch thread
+	 */
+	private void tag(List<Node> list, double[] values, String tag,
+			int skipped, long millis) {
+		List<Command> cmds = new ArrayList<Command>();
+		for (int i = 0; i < values.length; i++) {
+			// Nodes may have been deleted while sampling
+			if (!Double.isNaN(values[i]) && !list.get(i).isDeleted()) {
+				cmds.add(new ChangePropertyCommand(list.get(i), tag,
+						RasterSampler.formatValue(values[i])));
+			}
+		}
+		if (!cmds.isEmpty()) {
+			Main.main.undoRedo.add(new SequenceCommand(tr(
+					"Set {0} from raster", tag), cmds));
+		}
+
+		int total = list.size() + skipped;
+		if (skipped > 0) {
+			showMessage(tr(
+					"Tagged {0} of {1} nodes in {2} ms. {3} nodes without coordinates were skipped, the others are outside the image or have no data.",
+					cmds.size(), total, millis, skipped));
+		} else {
+			showMessage(tr(
+					"Tagged {0} of {1} nodes in {2} ms. The others are outside the image or have no data.",
+					cmds.size(), total, millis));
+		}
+	}
+
+	/**
+	 * Shows a message, from any thread
+	 */
+	private static void showMessage(final String message) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				JOptionPane.showMessageDialog(Main.parent, message);
+			}
+		});
+	}
+}
@@ -0,0 +1,298 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
+
+/**
+ * Watches a raster file for changes on disk and tells which parts of it
+ * changed, in the background
+ * 
+ * The raster is divided into square blocks, and a checksum of every block and
+ * band is kept. When the file has been written and then left alone for a
+ * moment, it is opened again and the blocks whose checksums differ are
+ * reported, so that only the tiles showing them need to be read again.
+ * 
+ * Computing the checksums reads the whole raster, so it is put off until the
+ * file actually changes: until then, only its modification time and length
+ * are kept. The first change is reported as a change of everything and takes
+ * the checksums compared by the following ones. They are computed on a
+ * thread of low priority.
+ */
+public class SourceWatcher {
+
+	/**
+	 * Gets notified on the watcher thread when the file has changed
+	 */
+	public interface Listener {
+		/**
+		 * @param regions
+		 *            Changed regions in pixels of the raster, null if the
+		 *            size, bands or georeferencing changed
+		 */
+		void sourceChanged(SourceWatcher watcher, List<Rectangle> regions);
+	}
+
+	/**
+	 * Time without further writes after which the file counts as complete
+	 */
+	private static final long QUIET_MILLIS = 1000;
+
+	private final File m_file;
+	private final int m_blockSize;
+	private final Listener m_listener;
+	private WatchService m_service;
+	private volatile boolean m_cancelled = false;
+	/**
+	 * Modification time and length of the file when last looked at
+	 */
+	private long m_lastModified;
+	private long m_length;
+	/**
+	 * Checksums indexed by [band][block row * block cols + block col], null
+	 * until the first change or if the raster could not be read
+	 */
+	private int[][] m_checksums;
+	private int m_xsize;
+	private int m_ysize;
+	private double[] m_geoTransform;
+	private volatile int m_changes = 0;
+	private volatile int m_changedBlocks = 0;
+	private volatile int m_blockCount = 0;
+
+	/**
+	 * @param file
+	 *            The raster file
+	 * @param blockSize
+	 *            Edge length of the blocks compared, in pixels of the raster
+	 * @param listener
+	 *            Notified of every change
+	 */
+	public SourceWatcher(File file, int blockSize, Listener listener) {
+		m_file = file.getAbsoluteFile();
+		m_blockSize = Math.max(16, blockSize);
+		m_listener = listener;
+	}
+
+	/**
+	 * Starts watching on a background thread of low priority
+	 * 
+	 * @throws IOException
+	 *             If the directory of the file cannot be watched
+	 */
+	public void start() throws IOException {
+		m_service = FileSystems.getDefault().newWatchService();
+		// Register before looking at the file, so no change gets lost
+		m_file.getParentFile().toPath().register(m_service, ENTRY_CREATE,
+				ENTRY_MODIFY);
+		m_lastModified = m_file.lastModified();
+		m_length = m_file.length();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "geotiffovl-watch");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching. No more changes are reported.
+	 */
+	public void cancel() {
+		m_cancelled = true;
+		try {
+			m_service.close();
+		} catch (IOException e) {
+			// Nothing left to release
+		}
+	}
+
+	/**
+	 * @return Number of changes reported so far
+	 */
+	public int getChangeCount() {
+		return m_changes;
+	}
+
+	/**
+	 * @return Number of blocks found changed by the last change
+	 */
+	public int getChangedBlocks() {
+		return m_changedBlocks;
+	}
+
+	public int getBlockCount() {
+		return m_blockCount;
+	}
+
+	private void watch() {
+		Path name = m_file.toPath().getFileName();
+		try {
+			while (!m_cancelled) {
+				if (!isChanged(m_service.take(), name)) {
+					continue;
+				}
+				// Wait for the writer to finish
+				long quietUntil = System.currentTimeMillis() + QUIET_MILLIS;
+				long wait;
+				while ((wait = quietUntil - System.currentTimeMillis()) > 0) {
+					WatchKey key = m_service.poll(wait, TimeUnit.MILLISECONDS);
+					if (key != null && isChanged(key, name)) {
+						quietUntil = System.currentTimeMillis() + QUIET_MILLIS;
+					}
+				}
+				// E.g. only attributes changed
+				long lastModified = m_file.lastModified();
+				long length = m_file.length();
+				if (lastModified == m_lastModified && length == m_length) {
+					continue;
+				}
+				m_lastModified = lastModified;
+				m_length = length;
+				update();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Cancelled
+		} catch (InterruptedException e) {
+			// Stop watching
+		}
+	}
+
+	/**
+	 * @return True if one of the events of a key concerns the file
+	 */
+	private static boolean isChanged(WatchKey key, Path name) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			changed |= event.kind() == OVERFLOW
+					|| name.equals(event.context());
+		}
+		key.reset();
+		return changed;
+	}
+
+	/**
+	 * Takes the checksums of the file and reports the blocks that changed,
+	 * or everything if there are no checksums to compare with yet
+	 */
+	private void update() {
+		Dataset ds = gdal.Open(m_file.getPath(), gdalconst.GA_ReadOnly);
+		if (ds == null) {
+			// Possibly still being written, wait for the next change
+			System.err.println("Could not open " + m_file + ": "
+					+ gdal.GetLastErrorMsg());
+			return;
+		}
+		try {
+			int xsize = ds.getRasterXSize();
+			int ysize = ds.getRasterYSize();
+			double[] gt = ds.GetGeoTransform();
+			int cols = (xsize + m_blockSize - 1) / m_blockSize;
+			int rows = (ysize + m_blockSize - 1) / m_blockSize;
+			int[][] checksums = new int[ds.getRasterCount()][cols * rows];
+			for (int b = 0; b < checksums.length; b++) {
+				for (int row = 0; row < rows; row++) {
+					for (int col = 0; col < cols; col++) {
+						if (m_cancelled) {
+							return;
+						}
+						Rectangle block = getBlock(col, row, xsize, ysize);
+						checksums[b][row * cols + col] = ds.GetRasterBand(
+								b + 1).Checksum(block.x, block.y,
+								block.width, block.height);
+					}
+				}
+			}
+
+			List<Rectangle> regions = null;
+			if (m_checksums != null && xsize == m_xsize && ysize == m_ysize
+					&& checksums.length == m_checksums.length
+					&& Arrays.equals(gt, m_geoTransform)) {
+				regions = new ArrayList<Rectangle>();
+				int changed = 0;
+				for (int row = 0; row < rows; row++) {
+					// Neighbouring changed blocks of a row form one region
+					Rectangle region = null;
+					for (int col = 0; col < cols; col++) {
+						boolean same = true;
+						for (int b = 0; b < checksums.length; b++) {
+							same &= checksums[b][row * cols + col] == m_checksums[b][row
+									* cols + col];
+						}
+						if (same) {
+							region = null;
+							continue;
+						}
+						changed++;
+						Rectangle block = getBlock(col, row, xsize, ysize);
+						if (region == null) {
+							region = block;
+							regions.add(region);
+						} else {
+							region.add(block.x + block.width, block.y
+									+ block.height);
+						}
+					}
+				}
+				m_changedBlocks = changed;
+			} else {
+				m_changedBlocks = cols * rows;
+			}
+
+			m_checksums = checksums;
+			m_xsize = xsize;
+			m_ysize = ysize;
+			m_geoTransform = gt;
+			m_blockCount = cols * rows;
+			if (regions == null || !regions.isEmpty()) {
+				m_changes++;
+				m_listener.sourceChanged(this, regions);
+			}
+		} finally {
+			ds.delete();
+		}
+	}
+
+	private Rectangle getBlock(int col, int row, int xsize, int ysize) {
+		int x = col * m_blockSize;
+		int y = row * m_blockSize;
+		return new Rectangle(x, y, Math.min(m_blockSize, xsize - x), Math.min(
+				m_blockSize, ysize - y));
+	}
+}
@@ -0,0 +1,115 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.util.Arrays;
+
+/**
+ * Linear contrast stretch of all bands to 0..255
+ * 
+ * Either stretches a fixed value range, or the mean plus and minus two
+ * standard deviations of every band, as far as the statistics are known.
+ */
+public class StretchStage implements TileStage {
+
+	/**
+	 * Standard deviations around the mean kept by the automatic stretch
+	 */
+	private static final double SIGMAS = 2.0;
+
+	private final double m_low;
+	private final double m_high;
+
+	/**
+	 * Stretches each band by its statistics
+	 */
+	public StretchStage() {
+		this(Double.NaN, Double.NaN);
+	}
+
+	/**
+	 * Stretches a fixed range of values for all bands
+	 * 
+	 * @param low
+	 *            Value mapped to 0
+	 * @param high
+	 *            Value mapped to 255
+	 */
+	public StretchStage(double low, double high) {
+		m_low = low;
+		m_high = high;
+	}
+
+	public int getHalo() {
+		return 0;
+	}
+
+	public int getBandCount(int bands, boolean raw) {
+		return bands;
+	}
+
+	public void markRawBands(boolean[] used, boolean raw) {
+		if (raw) {
+			Arrays.fill(used, true);
+		}
+	}
+
+	public void apply(TileData tile) {
+		final float[][] src = tile.getBands();
+		final float[][] dst = new float[src.length][];
+		final float[] offset = new float[src.length];
+		final float[] factor = new float[src.length];
+		double[] min = new double[src.length];
+		double[] max = new double[src.length];
+		for (int b = 0; b < src.length; b++) {
+			double low = m_low;
+			double high = m_high;
+			if (Double.isNaN(low)) {
+				low = tile.getMin(b);
+				high = tile.getMax(b);
+				double mean = tile.getMean(b);
+				double sd = tile.getStdDev(b);
+				if (!Double.isNaN(mean) && !Double.isNaN(sd) && sd > 0) {
+					low = Math.max(low, mean - SIGMAS * sd);
+					high = Math.min(high, mean + SIGMAS * sd);
+				}
+			}
+			offset[b] = (float) low;
+			factor[b] = high > low ? (float) (255.0 / (high - low)) : 0f;
+			dst[b] = new float[src[b].length];
+			min[b] = 0;
+			max[b] = 255;
+		}
+
+		final int width = tile.getWidth();
+		ParallelRows.run(width, tile.getHeight(), new ParallelRows.Body() {
+			public void run(int y0, int y1) {
+				for (int b = 0; b < src.length; b++) {
+					float[] s = src[b];
+					float[] d = dst[b];
+					float o = offset[b];
+					float f = factor[b];
+					for (int i = y0 * width; i < y1 * width; i++) {
+						float v = (s[i] - o) * f;
+						d[i] = v < 0f ? 0f : (v > 255f ? 255f : v);
+					}
+				}
+			}
+		});
+		tile.setBands(dst, min, max, null, null);
+	}
+}
@@ -0,0 +1,307 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Least-recently-used cache of decoded tiles, bounded by memory
+ * 
+ * Optionally backed by a {@link CompressedTileCache}: tiles evicted from the
+ * decoded tier are compressed on a background thread and moved to the second
+ * tier, from where a hit brings them back decoded.
+ * 
+ * All methods are safe to call from any thread, as tiles are put by the loader
+ * thread and taken by the painting thread.
+ */
+public class TileCache {
+
+	/**
+	 * Tiles in access order, least recently used first
+	 */
+	private final LinkedHashMap<TileKey, BufferedImage> m_tiles = new LinkedHashMap<TileKey, BufferedImage>(
+			64, 0.75f, true);
+	/**
+	 * Evicted tiles waiting to be compressed. They still count as cached.
+	 */
+	private final Map<TileKey, BufferedImage> m_compressing = new HashMap<TileKey, BufferedImage>();
+	/**
+	 * Second tier, null if disabled
+	 */
+	private final CompressedTileCache m_compressed;
+	private final ExecutorService m_compressor;
+	private final long m_maxBytes;
+	private long m_bytes = 0;
+	/**
+	 * Bumped whenever tiles are discarded, so that a tile taken from the
+	 * compressed tier before is not put back stale
+	 */
+	private long m_generation = 0;
+	private long m_hits = 0;
+	private long m_misses = 0;
+
+	/**
+	 * @param maxBytes
+	 *            Memory budget for decoded tiles
+	 * @param compressed
+	 *            Second tier for evicted tiles, may be null
+	 */
+	public TileCache(long maxBytes, CompressedTileCache compressed) {
+		m_maxBytes = maxBytes;
+		m_compressed = compressed;
+		if (compressed != null) {
+			m_compressor = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r,
+									"geotiffovl-tile-compressor");
+							t.setDaemon(true);
+							t.setPriority(Thread.MIN_PRIORITY);
+							return t;
+						}
+					});
+		} else {
+			m_compressor = null;
+		}
+	}
+
+	/**
+	 * @return The cached tile or null. Tiles found in the compressed tier are
+	 *         decompressed and become decoded tiles again.
+	 */
+	public BufferedImage get(TileKey key) {
+		long generation;
+		synchronized (this) {
+			generation = m_generation;
+			BufferedImage img = m_tiles.get(key);
+			if (img == null) {
+				// Not compressed yet, just take it back
+				img = m_compressing.remove(key);
+				if (img != null) {
+					m_tiles.put(key, img);
+					m_bytes += sizeOf(img);
+				}
+			}
+			if (img != null) {
+				m_hits++;
+				return img;
+			}
+		}
+
+		BufferedImage img = null;
+		if (m_compressed != null) {
+			img = m_compressed.take(key);
+		}
+		if (img != null && !put(key, img, generation)) {
+			// Discarded while it was decoded
+			img = null;
+		}
+		if (img == null) {
+			synchronized (this) {
+				m_misses++;
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * Like {@link #get(TileKey)}, but only looks at decoded tiles and counts
+	 * neither as a hit nor as a miss. Used for fallback lookups while the real
+	 * tile is loading.
+	 */
+	public synchronized BufferedImage peek(TileKey key) {
+		BufferedImage img = m_tiles.get(key);
+		if (img == null) {
+			img = m_compressing.get(key);
+		}
+		return img;
+	}
+
+	public boolean contains(TileKey key) {
+		synchronized (this) {
+			if (m_tiles.containsKey(key) || m_compressing.containsKey(key)) {
+				return true;
+			}
+		}
+		return m_compressed != null && m_compressed.contains(key);
+	}
+
+	public void put(TileKey key, BufferedImage img) {
+		put(key, img, -1);
+	}
+
+	/**
+	 * @param generation
+	 *            Generation the tile was taken in, -1 to put it regardless
+	 * @return False if the tile was not put, as tiles have been discarded
+	 *         since the given generation
+	 */
+	private boolean put(TileKey key, BufferedImage img, long generation) {
+		List<TileKey> evicted = new ArrayList<TileKey>();
+		synchronized (this) {
+			if (generation >= 0 && generation != m_generation) {
+				return false;
+			}
+			BufferedImage old = m_tiles.put(key, img);
+			if (old != null) {
+				m_bytes -= sizeOf(old);
+			}
+			m_bytes += sizeOf(img);
+
+			// Evict least recently used tiles until we are within budget
+			// again, but always keep the tile just added
+			Iterator<Map.Entry<TileKey, BufferedImage>> it = m_tiles
+					.entrySet().iterator();
+			while (m_bytes > m_maxBytes && it.hasNext()) {
+				Map.Entry<TileKey, BufferedImage> eldest = it.next();
+				if (eldest.getKey().equals(key)) {
+					break;
+				}
+				m_bytes -= sizeOf(eldest.getValue());
+				if (m_compressor != null) {
+					m_compressing.put(eldest.getKey(), eldest.getValue());
+					evicted.add(eldest.getKey());
+				}
+				it.remove();
+			}
+		}
+
+		for (final TileKey k : evicted) {
+			m_compressor.execute(new Runnable() {
+				public void run() {
+					compress(k);
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Moves an evicted tile to the compressed tier, unless it has been taken
+	 * back or the cache was cleared in the meantime
+	 */
+	private void compress(TileKey key) {
+		BufferedImage img;
+		synchronized (this) {
+			img = m_compressing.get(key);
+		}
+		if (img == null) {
+			return;
+		}
+		m_compressed.put(key, img);
+		synchronized (this) {
+			if (m_compressing.get(key) == img) {
+				m_compressing.remove(key);
+				return;
+			}
+		}
+		// Taken back while compressing, drop the compressed copy
+		m_compressed.remove(key);
+	}
+
+	/**
+	 * Discards some tiles from both tiers, e.g. because the image changed
+	 * there
+	 */
+	public void remove(Collection<TileKey> keys) {
+		synchronized (this) {
+			m_generation++;
+			for (TileKey key : keys) {
+				BufferedImage img = m_tiles.remove(key);
+				if (img != null) {
+					m_bytes -= sizeOf(img);
+				}
+				// A compression in progress drops its copy on seeing this
+				m_compressing.remove(key);
+			}
+		}
+		if (m_compressed != null) {
+			for (TileKey key : keys) {
+				m_compressed.remove(key);
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (this) {
+			m_generation++;
+			m_tiles.clear();
+			m_compressing.clear();
+			m_bytes = 0;
+		}
+		if (m_compressed != null) {
+			m_compressed.clear();
+		}
+	}
+
+	/**
+	 * Clears the cache and stops the compressor thread
+	 */
+	public void shutdown() {
+		clear();
+		if (m_compressor != null) {
+			m_compressor.shutdown();
+		}
+	}
+
+	public synchronized int getTileCount() {
+		return m_tiles.size();
+	}
+
+	public synchronized long getBytes() {
+		return m_bytes;
+	}
+
+	public long getMaxBytes() {
+		return m_maxBytes;
+	}
+
+	public synchronized long getHits() {
+		return m_hits;
+	}
+
+	public synchronized long getMisses() {
+		return m_misses;
+	}
+
+	/**
+	 * @return The compressed tier or null
+	 */
+	public CompressedTileCache getCompressed() {
+		return m_compressed;
+	}
+
+	/**
+	 * Estimates the heap usage of an image from its data buffer
+	 */
+	public static long sizeOf(BufferedImage img) {
+		DataBuffer buf = img.getRaster().getDataBuffer();
+		return (long) buf.getSize() * buf.getNumBanks()
+				* DataBuffer.getDataTypeSize(buf.getDataType()) / 8;
+	}
+}
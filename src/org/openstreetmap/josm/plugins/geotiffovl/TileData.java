@@ -0,0 +1,192 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Floating point bands of a tile on their way through a {@link TilePipeline}
+ * 
+ * The bands cover the tile plus the halo the stages asked for, less where the
+ * tile touches the edge of the raster. No data is NaN. Every band comes with
+ * its value range and, where known, mean and standard deviation over the
+ * whole raster, so that stages treat all tiles alike.
+ */
+public class TileData {
+
+	private final float[][] m_raw;
+	private float[][] m_bands;
+	private double[] m_min;
+	private double[] m_max;
+	private double[] m_mean;
+	private double[] m_stdDev;
+	private final int m_width;
+	private final int m_height;
+	private final Rectangle m_tile;
+	private final double m_pixelWidth;
+	private final double m_pixelHeight;
+
+	/**
+	 * @param raw
+	 *            Bands as read from the raster, row by row
+	 * @param width
+	 *            Width of the bands in pixels, including halo
+	 * @param height
+	 *            Height of the bands in pixels, including halo
+	 * @param tile
+	 *            Position of the tile itself within the bands
+	 * @param pixelWidth
+	 *            Width of a pixel in map units
+	 * @param pixelHeight
+	 *            Height of a pixel in map units
+	 * @param min
+	 *            Per band smallest value of the raster
+	 * @param max
+	 *            Per band largest value of the raster
+	 * @param mean
+	 *            Per band mean of the raster, NaN if unknown
+	 * @param stdDev
+	 *            Per band standard deviation of the raster, NaN if unknown
+	 */
+	public TileData(float[][] raw, int width, int height, Rectangle tile,
+			double pixelWidth, double pixelHeight, double[] min, double[] max,
+			double[] mean, double[] stdDev) {
+		m_raw = raw;
+		m_bands = raw;
+		m_width = width;
+		m_height = height;
+		m_tile = tile;
+		m_pixelWidth = pixelWidth;
+		m_pixelHeight = pixelHeight;
+		m_min = min;
+		m_max = max;
+		m_mean = mean;
+		m_stdDev = stdDev;
+	}
+
+	/**
+	 * @return Bands as read from the raster, never modified by stages
+	 */
+	public float[][] getRaw() {
+		return m_raw;
+	}
+
+	/**
+	 * @return True if no stage has replaced the bands yet
+	 */
+	public boolean isRaw() {
+		return m_bands == m_raw;
+	}
+
+	/**
+	 * @return Current bands, must not be modified in place
+	 */
+	public float[][] getBands() {
+		return m_bands;
+	}
+
+	public int getBandCount() {
+		return m_bands.length;
+	}
+
+	/**
+	 * Replaces the current bands
+	 * 
+	 * @param bands
+	 *            New bands of the same size
+	 * @param min
+	 *            Per band smallest possible value
+	 * @param max
+	 *            Per band largest possible value
+	 * @param mean
+	 *            Per band mean, or null if unknown
+	 * @param stdDev
+	 *            Per band standard deviation, or null if unknown
+	 */
+	public void setBands(float[][] bands, double[] min, double[] max,
+			double[] mean, double[] stdDev) {
+		m_bands = bands;
+		m_min = min;
+		m_max = max;
+		m_mean = mean != null ? mean : unknown(bands.length);
+		m_stdDev = stdDev != null ? stdDev : unknown(bands.length);
+	}
+
+	public double getMin(int band) {
+		return m_min[band];
+	}
+
+	public double getMax(int band) {
+		return m_max[band];
+	}
+
+	/**
+	 * @return Mean of a band, NaN if unknown
+	 */
+	public double getMean(int band) {
+		return m_mean[band];
+	}
+
+	/**
+	 * @return Standard deviation of a band, NaN if unknown
+	 */
+	public double getStdDev(int band) {
+		return m_stdDev[band];
+	}
+
+	/**
+	 * @return Width of the bands in pixels, including halo
+	 */
+	public int getWidth() {
+		return m_width;
+	}
+
+	/**
+	 * @return Height of the bands in pixels, including halo
+	 */
+	public int getHeight() {
+		return m_height;
+	}
+
+	/**
+	 * @return Position of the tile within the bands
+	 */
+	public Rectangle getTile() {
+		return m_tile;
+	}
+
+	/**
+	 * @return Width of a pixel in map units
+	 */
+	public double getPixelWidth() {
+		return m_pixelWidth;
+	}
+
+	/**
+	 * @return Height of a pixel in map units
+	 */
+	public double getPixelHeight() {
+		return m_pixelHeight;
+	}
+
+	private static double[] unknown(int bands) {
+		double[] values = new double[bands];
+		Arrays.fill(values, Double.NaN);
+		return values;
+	}
+}
@@ -0,0 +1,78 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+/**
+ * Identifies a tile of the projected image by its pyramid level and its
+ * column/row in the tile grid of that level
+ * 
+ * Level 0 is full resolution, every further level halves the resolution.
+ */
+public final class TileKey {
+
+	private final int m_level;
+	private final int m_col;
+	private final int m_row;
+
+	public TileKey(int level, int col, int row) {
+		m_level = level;
+		m_col = col;
+		m_row = row;
+	}
+
+	public int getLevel() {
+		return m_level;
+	}
+
+	public int getCol() {
+		return m_col;
+	}
+
+	public int getRow() {
+		return m_row;
+	}
+
+	/**
+	 * @return The tile of the next coarser level that contains this tile
+	 */
+	public TileKey getParent() {
+		return new TileKey(m_level + 1, m_col >> 1, m_row >> 1);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof TileKey)) {
+			return false;
+		}
+		TileKey other = (TileKey) obj;
+		return m_level == other.m_level && m_col == other.m_col
+				&& m_row == other.m_row;
+	}
+
+	@Override
+	public int hashCode() {
+		return (m_level * 31 + m_col) * 65537 + m_row;
+	}
+
+	@Override
+	public String toString() {
+		return m_level + "/" + m_col + "/" + m_row;
+	}
+}
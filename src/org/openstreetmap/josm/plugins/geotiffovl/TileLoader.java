@@ -0,0 +1,348 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.gdal.gdal.Dataset;
+
+/**
+ * Reads tiles in the background, most urgent first
+ * 
+ * A single thread does all the reading because GDAL datasets must not be used
+ * concurrently. Requests are ordered by priority, so tiles needed for the
+ * current view always overtake prefetch requests: prefetching only happens
+ * while there is nothing visible left to load. Requests that have not been
+ * repeated for more than one frame are considered stale and dropped.
+ */
+public class TileLoader {
+
+	/**
+	 * Gets notified when a tile needed for display has been loaded
+	 */
+	public interface Listener {
+		void tileLoaded(TileKey key);
+	}
+
+	/**
+	 * Tile is visible right now
+	 */
+	public static final int PRIORITY_VISIBLE = 0;
+	/**
+	 * Tile is just outside the view in the direction of movement
+	 */
+	public static final int PRIORITY_AHEAD = 1;
+	/**
+	 * Tile of the level the user is zooming towards
+	 */
+	public static final int PRIORITY_ZOOM = 2;
+	/**
+	 * Tile of the other adjacent level
+	 */
+	public static final int PRIORITY_IDLE = 3;
+
+	/**
+	 * Unit of work for the loader thread
+	 */
+	private abstract class Job implements Runnable, Comparable<Job> {
+		int m_priority;
+		final long m_sequence;
+
+		Job(int priority) {
+			m_priority = priority;
+			m_sequence = m_nextSequence++;
+		}
+
+		public int compareTo(Job other) {
+			if (m_priority != other.m_priority) {
+				return m_priority < other.m_priority ? -1 : 1;
+			}
+			return m_sequence < other.m_sequence ? -1
+					: (m_sequence == other.m_sequence ? 0 : 1);
+		}
+	}
+
+	private class LoadJob extends Job {
+		final TileKey m_key;
+		final TileSource m_jobSource;
+		long m_generation;
+
+		LoadJob(TileKey key, int priority) {
+			super(priority);
+			m_key = key;
+			m_jobSource = m_source;
+			m_generation = m_currentGeneration;
+		}
+
+		public void run() {
+			synchronized (TileLoader.this) {
+				if (m_jobSource != m_source) {
+					return;
+				}
+				if (m_generation < m_currentGeneration - 1
+						|| m_cache.contains(m_key)) {
+					m_pending.remove(m_key);
+					m_dropped++;
+					return;
+				}
+			}
+
+			BufferedImage img = null;
+			long start = System.nanoTime();
+			try {
+				img = m_jobSource.readTile(m_key);
+			} catch (RuntimeException e) {
+				System.err.println("Could not read tile " + m_key);
+				e.printStackTrace(System.err);
+			}
+			long nanos = System.nanoTime() - start;
+
+			int priority;
+			synchronized (TileLoader.this) {
+				m_pending.remove(m_key);
+				if (img == null || m_jobSource != m_source) {
+					return;
+				}
+				m_readNanos += nanos;
+				m_cache.put(m_key, img);
+				priority = m_priority;
+				if (priority == PRIORITY_VISIBLE) {
+					m_loaded++;
+				} else {
+					m_prefetched++;
+				}
+			}
+			if (priority == PRIORITY_VISIBLE && m_listener != null) {
+				m_listener.tileLoaded(m_key);
+			}
+		}
+	}
+
+	private class DisposeJob extends Job {
+		final TileSource m_oldSource;
+		final Dataset m_oldDataset;
+		/**
+		 * Counted down when done, may be null
+		 */
+		final CountDownLatch m_done;
+
+		DisposeJob(TileSource oldSource, Dataset oldDataset,
+				CountDownLatch done) {
+			super(Integer.MIN_VALUE);
+			m_oldSource = oldSource;
+			m_oldDataset = oldDataset;
+			m_done = done;
+		}
+
+		public void run() {
+			try {
+				if (m_oldSource != null) {
+					m_oldSource.dispose();
+				}
+				if (m_oldDataset != null) {
+					m_oldDataset.delete();
+				}
+			} finally {
+				if (m_done != null) {
+					m_done.countDown();
+				}
+			}
+		}
+	}
+
+	private final ThreadPoolExecutor m_executor;
+	private final PriorityBlockingQueue<Runnable> m_queue;
+	private final Map<TileKey, LoadJob> m_pending = new HashMap<TileKey, LoadJob>();
+	private final TileCache m_cache;
+	private final Listener m_listener;
+	private TileSource m_source = null;
+	private long m_currentGeneration = 0;
+	private long m_nextSequence = 0;
+	private long m_loaded = 0;
+	private long m_prefetched = 0;
+	private long m_dropped = 0;
+	private long m_readNanos = 0;
+
+	public TileLoader(TileCache cache, Listener listener) {
+		m_cache = cache;
+		m_listener = listener;
+		m_queue = new PriorityBlockingQueue<Runnable>();
+		m_executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				m_queue, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "geotiffovl-tile-loader");
+						t.setDaemon(true);
+						t.setPriority(Thread.NORM_PRIORITY - 1);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Switches to another tile source, e.g. after a change of projection.
+	 * Pending requests are discarded and the old source gets disposed on the
+	 * loader thread once it is no longer in use.
+	 */
+	public synchronized void setSource(TileSource source) {
+		TileSource old = m_source;
+		m_source = source;
+		dropLoadJobs();
+		if (old != null && !m_executor.isShutdown()) {
+			m_executor.execute(new DisposeJob(old, null, null));
+		}
+	}
+
+	/**
+	 * Drops the current source and deletes a dataset on the loader thread,
+	 * then waits until all sources and datasets given up so far are deleted.
+	 * Blocks for at most the tile being read. For when GDAL has to close a
+	 * file before it can be deleted.
+	 */
+	public void release(Dataset dataset) {
+		CountDownLatch released = new CountDownLatch(1);
+		synchronized (this) {
+			TileSource old = m_source;
+			m_source = null;
+			dropLoadJobs();
+			if (m_executor.isShutdown()) {
+				dataset.delete();
+				return;
+			}
+			m_executor.execute(new DisposeJob(old, dataset, released));
+		}
+		// Not while holding the lock, which the loader thread needs
+		boolean interrupted = false;
+		while (true) {
+			try {
+				released.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Discards pending requests. Disposals still queued stay, they must run.
+	 */
+	private void dropLoadJobs() {
+		m_pending.clear();
+		for (Iterator<Runnable> i = m_queue.iterator(); i.hasNext();) {
+			if (i.next() instanceof LoadJob) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Deletes a dataset on the loader thread, after all sources replaced so
+	 * far have been disposed. For source datasets that replaced sources were
+	 * warped from.
+	 */
+	public synchronized void dispose(Dataset dataset) {
+		if (m_executor.isShutdown()) {
+			dataset.delete();
+		} else {
+			m_executor.execute(new DisposeJob(null, dataset, null));
+		}
+	}
+
+	public synchronized TileSource getSource() {
+		return m_source;
+	}
+
+	/**
+	 * Marks the start of a new paint. Requests not repeated since the previous
+	 * frame are dropped from now on.
+	 */
+	public synchronized void beginFrame() {
+		m_currentGeneration++;
+	}
+
+	/**
+	 * Asks for a tile to be loaded into the cache. Repeated requests for the
+	 * same tile keep it alive and may raise its priority.
+	 */
+	public synchronized void request(TileKey key, int priority) {
+		if (m_source == null || m_executor.isShutdown()
+				|| !m_source.contains(key) || m_cache.contains(key)) {
+			return;
+		}
+		LoadJob job = m_pending.get(key);
+		if (job != null) {
+			job.m_generation = m_currentGeneration;
+			if (priority < job.m_priority) {
+				// Priority is part of the ordering, so change it only while
+				// the job is out of the queue. If it is not queued anymore,
+				// it is being loaded right now and only the notification
+				// depends on the priority.
+				boolean queued = m_queue.remove(job);
+				job.m_priority = priority;
+				if (queued) {
+					m_executor.execute(job);
+				}
+			}
+			return;
+		}
+		job = new LoadJob(key, priority);
+		m_pending.put(key, job);
+		m_executor.execute(job);
+	}
+
+	/**
+	 * Stops the loader thread and disposes the current source
+	 */
+	public synchronized void shutdown() {
+		setSource(null);
+		m_executor.shutdown();
+	}
+
+	public synchronized int getPendingCount() {
+		return m_pending.size();
+	}
+
+	public synchronized long getLoadedCount() {
+		return m_loaded;
+	}
+
+	public synchronized long getPrefetchedCount() {
+		return m_prefetched;
+	}
+
+	public synchronized long getDroppedCount() {
+		return m_dropped;
+	}
+
+	/**
+	 * @return Mean time to read and decode a tile with GDAL in milliseconds
+	 */
+	public synchronized double getMeanReadMillis() {
+		long count = m_loaded + m_prefetched;
+		return count > 0 ? m_readNanos / 1e6 / count : 0.0;
+	}
+}
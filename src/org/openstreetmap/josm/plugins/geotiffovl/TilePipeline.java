@@ -0,0 +1,469 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.gdal.gdal.Band;
+import org.gdal.gdal.Dataset;
+import org.gdal.gdalconst.gdalconstConstants;
+
+/**
+ * Processing stages applied to every tile between reading it from GDAL and
+ * displaying it
+ * 
+ * A pipeline is described by a string of stages separated by ';', each with
+ * optional arguments after ':', e.g. "ramp:terrain;hillshade". Available are
+ * 
+ * <pre>
+ * bands:4,3,2         band combination, see BandCombinationStage
+ * stretch[:low,high]  contrast stretch, automatic if no range is given
+ * ramp:name[,low,high] colour ramp of the first band
+ * hillshade[:azimuth,altitude,zfactor] shaded relief of the first band
+ * </pre>
+ * 
+ * The stages see the bands as floating point values and may ask for a halo
+ * of extra pixels around the tile, which is read along with it. At the end
+ * one band is shown as grey, two as grey and alpha, three as RGB and four as
+ * RGBA, each scaled from its value range. Processed tiles go to the tile
+ * cache like any other, so every tile is processed once. Only the bands some
+ * stage looks at are read and have their statistics gathered.
+ */
+public class TilePipeline {
+
+	static {
+		// Mark this file for translation
+		marktr("");
+	}
+
+	private final String m_spec;
+	private final List<TileStage> m_stages;
+	private final int m_halo;
+
+	/**
+	 * @param spec
+	 *            Description of the pipeline, shown to the user
+	 * @param stages
+	 *            The stages, in order
+	 */
+	public TilePipeline(String spec, List<TileStage> stages) {
+		m_spec = spec;
+		m_stages = Collections.unmodifiableList(new ArrayList<TileStage>(
+				stages));
+		int halo = 0;
+		for (TileStage stage : stages) {
+			halo += stage.getHalo();
+		}
+		m_halo = halo;
+	}
+
+	/**
+	 * Creates a pipeline from its description
+	 * 
+	 * @throws IllegalArgumentException
+	 *             With a message for the user if the description is invalid
+	 */
+	public static TilePipeline parse(String spec) {
+		List<TileStage> stages = new ArrayList<TileStage>();
+		for (String part : spec.split(";")) {
+			part = part.trim();
+			if (part.length() == 0) {
+				continue;
+			}
+			int colon = part.indexOf(':');
+			String name = (colon < 0 ? part : part.substring(0, colon)).trim();
+			String args = colon < 0 ? "" : part.substring(colon + 1).trim();
+			try {
+				stages.add(createStage(name, args));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(tr(
+						"Invalid number in ''{0}''", part));
+			}
+		}
+		return new TilePipeline(spec.trim(), stages);
+	}
+
+	private static TileStage createStage(String name, String args) {
+		double[] numbers;
+		if ("bands".equals(name)) {
+			// Split at commas outside of parentheses
+			List<String> exprs = new ArrayList<String>();
+			int depth = 0;
+			int start = 0;
+			for (int i = 0; i < args.length(); i++) {
+				char c = args.charAt(i);
+				depth += c == '(' ? 1 : (c == ')' ? -1 : 0);
+				if (c == ',' && depth == 0) {
+					exprs.add(args.substring(start, i));
+					start = i + 1;
+				}
+			}
+			exprs.add(args.substring(start));
+			return new BandCombinationStage(exprs.toArray(new String[exprs
+					.size()]));
+		} else if ("stretch".equals(name)) {
+			numbers = parseNumbers(args, 0, 2);
+			return numbers.length == 0 ? new StretchStage() : new StretchStage(
+					numbers[0], numbers[1]);
+		} else if ("ramp".equals(name)) {
+			String[] parts = args.split(",", 2);
+			numbers = parseNumbers(parts.length > 1 ? parts[1] : "", 0, 2);
+			String ramp = parts[0].trim().length() > 0 ? parts[0].trim()
+					: "terrain";
+			return numbers.length == 0 ? new ColorRampStage(ramp, Double.NaN,
+					Double.NaN) : new ColorRampStage(ramp, numbers[0],
+					numbers[1]);
+		} else if ("hillshade".equals(name)) {
+			numbers = parseNumbers(args, 0, 1, 2, 3);
+			return new HillshadeStage(numbers.length > 0 ? numbers[0] : 315,
+					numbers.length > 1 ? numbers[1] : 45,
+					numbers.length > 2 ? numbers[2] : 1);
+		}
+		throw new IllegalArgumentException(tr("Unknown processing step ''{0}''",
+				name));
+	}
+
+	/**
+	 * Parses a comma separated list of numbers
+	 * 
+	 * @param counts
+	 *            Allowed numbers of numbers
+	 */
+	private static double[] parseNumbers(String args, int... counts) {
+		String[] parts = args.trim().length() == 0 ? new String[0] : args
+				.split(",");
+		boolean allowed = false;
+		for (int count : counts) {
+			allowed |= parts.length == count;
+		}
+		if (!allowed) {
+			throw new IllegalArgumentException(tr(
+					"Wrong number of arguments in ''{0}''", args));
+		}
+		double[] numbers = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			numbers[i] = Double.parseDouble(parts[i].trim());
+		}
+		return numbers;
+	}
+
+	public String getSpec() {
+		return m_spec;
+	}
+
+	public List<TileStage> getStages() {
+		return m_stages;
+	}
+
+	/**
+	 * Checks that the stages fit together and to a raster
+	 * 
+	 * @param bands
+	 *            Number of bands of the raster
+	 * @throws IllegalArgumentException
+	 *             With a message for the user if they do not
+	 */
+	public void check(int bands) {
+		boolean raw = true;
+		for (TileStage stage : m_stages) {
+			bands = stage.getBandCount(bands, raw);
+			raw = false;
+		}
+	}
+
+	/**
+	 * Finds the bands of a raster the stages read, see
+	 * {@link TileStage#markRawBands(boolean[], boolean)}
+	 * 
+	 * @param count
+	 *            Number of bands the first stage gets
+	 * @return Whether each of them is read
+	 */
+	public boolean[] getUsedBands(int count) {
+		boolean[] used = new boolean[count];
+		boolean raw = true;
+		for (TileStage stage : m_stages) {
+			stage.markRawBands(used, raw);
+			raw = false;
+		}
+		return used;
+	}
+
+	/**
+	 * @return Number of pixels around a tile the stages need, in total
+	 */
+	public int getHalo() {
+		return m_halo;
+	}
+
+	public boolean isEmpty() {
+		return m_stages.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return m_spec;
+	}
+
+	/**
+	 * Reads tiles of one dataset through the pipeline. Band statistics are
+	 * gathered once on creation, on the calling thread.
+	 * 
+	 * @param bands
+	 *            Bands of the dataset the stages get, 1-based, or null for
+	 *            all. Bands no stage reads may be 0, i.e. left out of the
+	 *            dataset.
+	 * @param statistics
+	 *            Dataset with the same bands and values as the dataset, to
+	 *            compute band statistics on. For a warped dataset, this is
+	 *            the dataset it was warped from, which is much cheaper to
+	 *            scan and may have statistics already.
+	 */
+	public Reader createReader(Dataset dataset, int[] bands,
+			Dataset statistics) {
+		return new Reader(dataset, bands, statistics);
+	}
+
+	/**
+	 * Reads tiles of a dataset with the same bands as that of another reader
+	 * of this pipeline, e.g. the same file reopened, and scales them with the
+	 * other reader's band statistics. Tiles already read by the other reader
+	 * thus match the new ones.
+	 */
+	public Reader createReader(Dataset dataset, Reader like) {
+		return new Reader(dataset, like);
+	}
+
+	/**
+	 * Reads and processes tiles of a dataset
+	 */
+	public class Reader {
+		private final Dataset m_dataset;
+		private final int m_rawCount;
+		/**
+		 * Index among the raw bands of every band read
+		 */
+		private final int[] m_used;
+		/**
+		 * Dataset band of every band read, 1-based
+		 */
+		private final int[] m_bandList;
+		private final float[] m_noData;
+		private final double[] m_min;
+		private final double[] m_max;
+		private final double[] m_mean;
+		private final double[] m_stdDev;
+
+		Reader(Dataset dataset, Reader like) {
+			m_dataset = dataset;
+			m_rawCount = like.m_rawCount;
+			m_used = like.m_used;
+			m_bandList = like.m_bandList;
+			m_noData = like.m_noData;
+			m_min = like.m_min;
+			m_max = like.m_max;
+			m_mean = like.m_mean;
+			m_stdDev = like.m_stdDev;
+		}
+
+		Reader(Dataset dataset, int[] bands, Dataset statistics) {
+			m_dataset = dataset;
+			if (bands == null) {
+				bands = new int[dataset.getRasterCount()];
+				for (int b = 0; b < bands.length; b++) {
+					bands[b] = b + 1;
+				}
+			}
+			m_rawCount = bands.length;
+
+			boolean[] used = getUsedBands(bands.length);
+			int count = 0;
+			for (boolean u : used) {
+				count += u ? 1 : 0;
+			}
+			m_used = new int[count];
+			m_bandList = new int[count];
+			for (int b = 0, i = 0; b < used.length; b++) {
+				if (used[b]) {
+					m_used[i] = b;
+					m_bandList[i++] = bands[b];
+				}
+			}
+
+			m_noData = new float[count];
+			m_min = new double[m_rawCount];
+			m_max = new double[m_rawCount];
+			m_mean = new double[m_rawCount];
+			m_stdDev = new double[m_rawCount];
+			Arrays.fill(m_min, Double.NaN);
+			Arrays.fill(m_max, Double.NaN);
+			Arrays.fill(m_mean, Double.NaN);
+			Arrays.fill(m_stdDev, Double.NaN);
+			Double[] nd = new Double[1];
+			for (int i = 0; i < count; i++) {
+				int b = m_used[i];
+				Band band = statistics.GetRasterBand(m_bandList[i]);
+				band.GetNoDataValue(nd);
+				m_noData[i] = nd[0] != null ? nd[0].floatValue() : Float.NaN;
+
+				double[] min = new double[1];
+				double[] max = new double[1];
+				double[] mean = new double[1];
+				double[] sd = new double[1];
+				if (band.GetStatistics(true, true, min, max, mean, sd) == gdalconstConstants.CE_None) {
+					m_min[b] = min[0];
+					m_max[b] = max[0];
+					m_mean[b] = mean[0];
+					m_stdDev[b] = sd[0];
+				} else {
+					double[] range = PixelConverter.getRange(band);
+					m_min[b] = range[0];
+					m_max[b] = range[1];
+				}
+			}
+		}
+
+		/**
+		 * Reads a window of the dataset with the halo the stages need,
+		 * processes it and converts it to an image
+		 * 
+		 * @param window
+		 *            Window in dataset pixels
+		 * @param level
+		 *            Pyramid level, the window is decimated by 2^level
+		 * @param width
+		 *            Width of the resulting image
+		 * @param height
+		 *            Height of the resulting image
+		 * @return The image, or null if GDAL could not read the data
+		 */
+		public BufferedImage read(Rectangle window, int level, int width,
+				int height) {
+			// Extend the window by the halo, as far as the raster reaches
+			int halo = m_halo << level;
+			int x0 = Math.max(0, window.x - halo);
+			int y0 = Math.max(0, window.y - halo);
+			int x1 = Math.min(m_dataset.getRasterXSize(), window.x
+					+ window.width + halo);
+			int y1 = Math.min(m_dataset.getRasterYSize(), window.y
+					+ window.height + halo);
+			Rectangle tile = new Rectangle((window.x - x0) >> level,
+					(window.y - y0) >> level, width, height);
+			int bufWidth = tile.x + width
+					+ ((x1 - window.x - window.width) >> level);
+			int bufHeight = tile.y + height
+					+ ((y1 - window.y - window.height) >> level);
+
+			int pixels = bufWidth * bufHeight;
+			float[] buf = new float[pixels * m_bandList.length];
+			if (m_dataset.ReadRaster(x0, y0, x1 - x0, y1 - y0, bufWidth,
+					bufHeight, gdalconstConstants.GDT_Float32, buf, m_bandList) != gdalconstConstants.CE_None) {
+				GDALTools.printLastError();
+				return null;
+			}
+			// Bands no stage looks at stay null
+			float[][] raw = new float[m_rawCount][];
+			for (int b = 0; b < m_bandList.length; b++) {
+				float[] plane = new float[pixels];
+				raw[m_used[b]] = plane;
+				System.arraycopy(buf, b * pixels, plane, 0, pixels);
+				float nd = m_noData[b];
+				if (!Float.isNaN(nd)) {
+					for (int i = 0; i < pixels; i++) {
+						if (plane[i] == nd) {
+							plane[i] = Float.NaN;
+						}
+					}
+				}
+			}
+
+			double[] gt = m_dataset.GetGeoTransform();
+			TileData data = new TileData(raw, bufWidth, bufHeight, tile, Math
+					.abs(gt[1])
+					* (1 << level), Math.abs(gt[5]) * (1 << level), m_min
+					.clone(), m_max.clone(), m_mean.clone(), m_stdDev.clone());
+			for (TileStage stage : m_stages) {
+				stage.apply(data);
+			}
+			return render(data);
+		}
+	}
+
+	/**
+	 * Converts the tile part of the bands to packed ARGB, each band scaled
+	 * from its value range to 0..255. NaN becomes transparent.
+	 */
+	private static BufferedImage render(TileData data) {
+		final Rectangle tile = data.getTile();
+		final int stride = data.getWidth();
+		final float[][] bands = data.getBands();
+		final int count = Math.min(bands.length, 4);
+		final float[] offset = new float[count];
+		final float[] factor = new float[count];
+		for (int b = 0; b < count; b++) {
+			double range = data.getMax(b) - data.getMin(b);
+			offset[b] = (float) data.getMin(b);
+			factor[b] = range > 0 ? (float) (255.0 / range) : 0f;
+		}
+
+		BufferedImage img = new BufferedImage(tile.width, tile.height,
+				BufferedImage.TYPE_INT_ARGB);
+		final int[] argb = ((DataBufferInt) img.getRaster().getDataBuffer())
+				.getData();
+		ParallelRows.run(tile.width, tile.height, new ParallelRows.Body() {
+			public void run(int y0, int y1) {
+				int[] c = new int[4];
+				for (int y = y0; y < y1; y++) {
+					int src = (tile.y + y) * stride + tile.x;
+					int dst = y * tile.width;
+					for (int x = 0; x < tile.width; x++, src++, dst++) {
+						boolean valid = true;
+						for (int b = 0; b < count; b++) {
+							float v = bands[b][src];
+							valid &= v == v;
+							int s = (int) ((v - offset[b]) * factor[b] + 0.5f);
+							c[b] = s < 0 ? 0 : (s > 255 ? 255 : s);
+						}
+						if (!valid) {
+							argb[dst] = 0;
+						} else if (count == 1) {
+							argb[dst] = 0xff000000 | c[0] * 0x010101;
+						} else if (count == 2) {
+							argb[dst] = c[1] << 24 | c[0] * 0x010101;
+						} else if (count == 3) {
+							argb[dst] = 0xff000000 | c[0] << 16 | c[1] << 8
+									| c[2];
+						} else {
+							argb[dst] = c[3] << 24 | c[0] << 16 | c[1] << 8
+									| c[2];
+						}
+					}
+				}
+			}
+		});
+		return img;
+	}
+}
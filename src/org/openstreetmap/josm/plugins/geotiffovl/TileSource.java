@@ -0,0 +1,425 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.Rectangle;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gdal.gdal.Dataset;
+import org.openstreetmap.josm.data.coor.EastNorth;
+
+/**
+ * Cuts a projected (warped) dataset into a pyramid of square tiles
+ * 
+ * Tiles of level 0 map one tile pixel to one dataset pixel, every further
+ * level covers twice the area per tile in both directions. Reading a tile of a
+ * coarse level asks GDAL for a decimated buffer, which lets GDAL pick the
+ * matching overview of the source image if there is one.
+ * 
+ * Instances are not thread-safe: GDAL datasets must only be read by one thread
+ * at a time, which is the job of {@link TileLoader}.
+ */
+public class TileSource {
+
+	/**
+	 * Warped dataset in display projection
+	 */
+	private Dataset m_dataset;
+	/**
+	 * Projection code the dataset was warped to
+	 */
+	private final String m_projCode;
+	/**
+	 * Coordinate transformation of the warped dataset
+	 */
+	private final double[] m_geoTransform;
+	private final int m_xsize;
+	private final int m_ysize;
+	private final int m_tileSize;
+	private final int m_maxLevel;
+	/**
+	 * Created by the first tile read, so that computing the value range of
+	 * the bands happens on the loader thread
+	 */
+	private PixelConverter m_converter;
+	/**
+	 * Processing applied to every tile, null for none
+	 */
+	private final TilePipeline m_pipeline;
+	private TilePipeline.Reader m_pipelineReader;
+	/**
+	 * Bands of the source shown, 1-based, null if picked automatically
+	 */
+	private final int[] m_bands;
+	/**
+	 * Source dataset the warped dataset was made from, owned by the layer
+	 */
+	private final Dataset m_source;
+	/**
+	 * Band subset of the source the warped dataset was made from, null if
+	 * it was made from the source itself
+	 */
+	private Dataset m_subset;
+	/**
+	 * Band of the warped dataset for each band shown or processed, 0 where
+	 * it is not in the subset. Null for all bands of the source.
+	 */
+	private final int[] m_readBands;
+	/**
+	 * Source whose scaling the first tile read takes over, so tiles cached
+	 * from it match the new ones. Only touched on the loader thread once
+	 * this source is in use.
+	 */
+	private TileSource m_previous;
+
+	/**
+	 * @param dataset
+	 *            Warped dataset, this instance takes ownership
+	 * @param projCode
+	 *            Projection code of the warped dataset, e.g. "EPSG:4326"
+	 * @param tileSize
+	 *            Edge length of a tile in pixels
+	 * @param pipeline
+	 *            Processing applied to every tile, may be null
+	 * @param bands
+	 *            Bands of the source shown, 1-based, or null to pick them
+	 *            automatically
+	 * @param source
+	 *            Source dataset, which must outlive this instance. Band
+	 *            statistics for the pipeline are computed on it or the
+	 *            subset rather than on the warped dataset, which would have to
+	 *            warp the image for them.
+	 * @param subset
+	 *            Dataset with just some bands of the source that the warped
+	 *            dataset was made from, this instance takes ownership. Null
+	 *            if it was made from the source itself, in which case only
+	 *            the selected bands are read from it.
+	 * @param subsetBands
+	 *            Bands of the source in the subset, 1-based: the selected
+	 *            ones, or without a selection the ones the pipeline reads
+	 */
+	public TileSource(Dataset dataset, String projCode, int tileSize,
+			TilePipeline pipeline, int[] bands, Dataset source,
+			Dataset subset, int[] subsetBands) {
+		m_dataset = dataset;
+		m_source = source;
+		m_bands = bands != null ? bands.clone() : null;
+		m_subset = subset;
+		m_readBands = subset != null ? toSubset(bands != null ? bands
+				: allBands(source.getRasterCount()), subsetBands) : m_bands;
+		m_pipeline = pipeline != null && !pipeline.isEmpty() ? pipeline
+				: null;
+		m_projCode = projCode;
+		m_geoTransform = dataset.GetGeoTransform();
+		m_xsize = dataset.getRasterXSize();
+		m_ysize = dataset.getRasterYSize();
+		m_tileSize = tileSize;
+
+		// Coarsest level is the first that fits into a single tile
+		int level = 0;
+		while (((m_xsize - 1) >> level) >= tileSize
+				|| ((m_ysize - 1) >> level) >= tileSize) {
+			level++;
+		}
+		m_maxLevel = level;
+	}
+
+	public Dataset getDataset() {
+		return m_dataset;
+	}
+
+	public String getProjCode() {
+		return m_projCode;
+	}
+
+	public double[] getGeoTransform() {
+		return m_geoTransform;
+	}
+
+	public int getXSize() {
+		return m_xsize;
+	}
+
+	public int getYSize() {
+		return m_ysize;
+	}
+
+	public int getTileSize() {
+		return m_tileSize;
+	}
+
+	/**
+	 * @return Processing applied to every tile, null for none
+	 */
+	public TilePipeline getPipeline() {
+		return m_pipeline;
+	}
+
+	/**
+	 * @return Bands of the source shown, 1-based, null if picked
+	 *         automatically
+	 */
+	public int[] getBands() {
+		return m_bands != null ? m_bands.clone() : null;
+	}
+
+	public int getMaxLevel() {
+		return m_maxLevel;
+	}
+
+	/**
+	 * Picks the coarsest level whose pixels are not larger than a screen pixel
+	 * 
+	 * @param scale
+	 *            Map units per screen pixel, see MapView.getScale()
+	 */
+	public int levelForScale(double scale) {
+		double ratio = scale / Math.abs(m_geoTransform[1]);
+		if (ratio <= 1.0 || Double.isNaN(ratio)) {
+			return 0;
+		}
+		int level = (int) Math.floor(Math.log(ratio) / Math.log(2.0));
+		return Math.max(0, Math.min(level, m_maxLevel));
+	}
+
+	/**
+	 * @return Number of tile columns of the given level
+	 */
+	public int getCols(int level) {
+		int span = m_tileSize << level;
+		return (m_xsize + span - 1) / span;
+	}
+
+	/**
+	 * @return Number of tile rows of the given level
+	 */
+	public int getRows(int level) {
+		int span = m_tileSize << level;
+		return (m_ysize + span - 1) / span;
+	}
+
+	/**
+	 * @return true if the key addresses a tile inside the image
+	 */
+	public boolean contains(TileKey key) {
+		return key.getLevel() >= 0 && key.getLevel() <= m_maxLevel
+				&& key.getCol() >= 0 && key.getCol() < getCols(key.getLevel())
+				&& key.getRow() >= 0 && key.getRow() < getRows(key.getLevel());
+	}
+
+	/**
+	 * Window of the warped dataset covered by a tile, clipped to the image
+	 */
+	public Rectangle getPixelWindow(TileKey key) {
+		int span = m_tileSize << key.getLevel();
+		int x = key.getCol() * span;
+		int y = key.getRow() * span;
+		return new Rectangle(x, y, Math.min(span, m_xsize - x), Math.min(span,
+				m_ysize - y));
+	}
+
+	/**
+	 * @return Upper left corner of a tile in projected coordinates
+	 */
+	public EastNorth getTileOrigin(TileKey key) {
+		Rectangle w = getPixelWindow(key);
+		return toEastNorth(GDALTools.applyGeoTransform(w.x, w.y,
+				m_geoTransform));
+	}
+
+	/**
+	 * @return Lower right corner of a tile in projected coordinates
+	 */
+	public EastNorth getTileEnd(TileKey key) {
+		Rectangle w = getPixelWindow(key);
+		return toEastNorth(GDALTools.applyGeoTransform(w.x + w.width, w.y
+				+ w.height, m_geoTransform));
+	}
+
+	/**
+	 * Determines the tiles of a level that intersect a projected rectangle
+	 * 
+	 * @return Tile columns and rows as rectangle, empty if there is no overlap
+	 */
+	public Rectangle getTileRange(int level, EastNorth a, EastNorth b) {
+		Point2D pa = GDALTools.applyInvGeoTransform(a.east(), a.north(),
+				m_geoTransform);
+		Point2D pb = GDALTools.applyInvGeoTransform(b.east(), b.north(),
+				m_geoTransform);
+		double span = m_tileSize << level;
+		int col0 = (int) Math.floor(Math.min(pa.getX(), pb.getX()) / span);
+		int col1 = (int) Math.floor(Math.max(pa.getX(), pb.getX()) / span);
+		int row0 = (int) Math.floor(Math.min(pa.getY(), pb.getY()) / span);
+		int row1 = (int) Math.floor(Math.max(pa.getY(), pb.getY()) / span);
+		col0 = Math.max(col0, 0);
+		row0 = Math.max(row0, 0);
+		col1 = Math.min(col1, getCols(level) - 1);
+		row1 = Math.min(row1, getRows(level) - 1);
+		if (col1 < col0 || row1 < row0) {
+			return new Rectangle();
+		}
+		return new Rectangle(col0, row0, col1 - col0 + 1, row1 - row0 + 1);
+	}
+
+	/**
+	 * Determines the tiles of all levels that show something of a projected
+	 * rectangle, including those that only reach into it with the halo of
+	 * their processing
+	 */
+	public List<TileKey> getTilesTouching(EastNorth a, EastNorth b) {
+		Point2D pa = GDALTools.applyInvGeoTransform(a.east(), a.north(),
+				m_geoTransform);
+		Point2D pb = GDALTools.applyInvGeoTransform(b.east(), b.north(),
+				m_geoTransform);
+		// One more pixel for rounding at the edge of the rectangle
+		int halo = (m_pipeline != null ? m_pipeline.getHalo() : 0) + 1;
+		List<TileKey> keys = new ArrayList<TileKey>();
+		for (int level = 0; level <= m_maxLevel; level++) {
+			double margin = halo << level;
+			double span = m_tileSize << level;
+			int col0 = Math.max(0, (int) Math.floor((Math.min(pa.getX(), pb
+					.getX()) - margin)
+					/ span));
+			int col1 = Math.min(getCols(level) - 1, (int) Math.floor((Math
+					.max(pa.getX(), pb.getX()) + margin)
+					/ span));
+			int row0 = Math.max(0, (int) Math.floor((Math.min(pa.getY(), pb
+					.getY()) - margin)
+					/ span));
+			int row1 = Math.min(getRows(level) - 1, (int) Math.floor((Math
+					.max(pa.getY(), pb.getY()) + margin)
+					/ span));
+			for (int row = row0; row <= row1; row++) {
+				for (int col = col0; col <= col1; col++) {
+					keys.add(new TileKey(level, col, row));
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Reads a tile from the warped dataset and runs it through the pipeline,
+	 * if any
+	 * 
+	 * @return The tile image, or null if GDAL could not read it
+	 */
+	public BufferedImage readTile(TileKey key) {
+		if (m_previous != null) {
+			takeScaling();
+		}
+		Rectangle w = getPixelWindow(key);
+		int level = key.getLevel();
+		int bufXSize = Math.max(1, (w.width + (1 << level) - 1) >> level);
+		int bufYSize = Math.max(1, (w.height + (1 << level) - 1) >> level);
+		if (m_pipeline != null) {
+			if (m_pipelineReader == null) {
+				m_pipelineReader = m_pipeline.createReader(m_dataset,
+						m_readBands, m_subset != null ? m_subset : m_source);
+			}
+			return m_pipelineReader.read(w, level, bufXSize, bufYSize);
+		}
+		if (m_converter == null) {
+			m_converter = new PixelConverter(m_dataset, m_readBands);
+		}
+		return m_converter.read(m_dataset, w.x, w.y, w.width, w.height,
+				bufXSize, bufYSize);
+	}
+
+	/**
+	 * Lets this source scale its tiles like a source it replaces, e.g. after
+	 * the same file was reopened. Value ranges and band statistics are
+	 * otherwise computed again and may come out differently, e.g. from new
+	 * overviews, which would show as seams between cached and new tiles.
+	 * Must be called before the source is handed to the loader.
+	 * 
+	 * @param previous
+	 *            The replaced source, ignored unless it shows the same bands
+	 *            with the same processing
+	 */
+	public void keepScalingOf(TileSource previous) {
+		if (previous != null && previous.m_pipeline == m_pipeline
+				&& Arrays.equals(previous.m_bands, m_bands)) {
+			m_previous = previous;
+		}
+	}
+
+	/**
+	 * Takes over the scaling of the previous source or, if that never read a
+	 * tile, of its own previous source
+	 */
+	private void takeScaling() {
+		for (TileSource p = m_previous; p != null; p = p.m_previous) {
+			if (p.m_converter != null || p.m_pipelineReader != null) {
+				m_converter = p.m_converter;
+				if (p.m_pipelineReader != null) {
+					m_pipelineReader = m_pipeline.createReader(m_dataset,
+							p.m_pipelineReader);
+				}
+				break;
+			}
+		}
+		m_previous = null;
+	}
+
+	/**
+	 * Releases the warped dataset. Must not be called while a tile is read.
+	 */
+	public void dispose() {
+		if (m_dataset != null) {
+			m_dataset.delete();
+			m_dataset = null;
+		}
+		if (m_subset != null) {
+			m_subset.delete();
+			m_subset = null;
+		}
+	}
+
+	private static int[] allBands(int count) {
+		int[] bands = new int[count];
+		for (int b = 0; b < count; b++) {
+			bands[b] = b + 1;
+		}
+		return bands;
+	}
+
+	/**
+	 * @return The position of each band in the subset, 1-based, 0 for
+	 *         bands not in it
+	 */
+	private static int[] toSubset(int[] bands, int[] subsetBands) {
+		int[] positions = new int[bands.length];
+		for (int b = 0; b < bands.length; b++) {
+			for (int i = 0; i < subsetBands.length; i++) {
+				if (subsetBands[i] == bands[b]) {
+					positions[b] = i + 1;
+					break;
+				}
+			}
+		}
+		return positions;
+	}
+
+	private static EastNorth toEastNorth(Point2D p) {
+		return new EastNorth(p.getX(), p.getY());
+	}
+}
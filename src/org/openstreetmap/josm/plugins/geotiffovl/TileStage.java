@@ -0,0 +1,65 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+/**
+ * A step of a {@link TilePipeline}, e.g. a contrast stretch or a hillshade
+ * 
+ * Stages work on the floating point bands of one tile at a time, on the
+ * loader thread. They may use {@link ParallelRows} to spread the work over
+ * all cores. Implementations must be immutable, as one pipeline is shared by
+ * all tiles of a layer.
+ */
+public interface TileStage {
+
+	/**
+	 * @return Number of pixels this stage needs around the tile on every side
+	 *         to compute the pixels at its edge, e.g. 1 for a 3x3 kernel
+	 */
+	int getHalo();
+
+	/**
+	 * @param bands
+	 *            Number of bands the stage gets
+	 * @param raw
+	 *            True if these are the bands of the raster, i.e. no stage ran
+	 *            before
+	 * @return Number of bands the stage produces
+	 * @throws IllegalArgumentException
+	 *             With a message for the user if the stage cannot work on
+	 *             that many bands
+	 */
+	int getBandCount(int bands, boolean raw);
+
+	/**
+	 * Marks the bands of the raster this stage reads, so that only those are
+	 * read from GDAL
+	 * 
+	 * @param used
+	 *            One flag per band of the raster
+	 * @param raw
+	 *            True if the stage gets the bands of the raster, i.e. no stage
+	 *            ran before
+	 */
+	void markRawBands(boolean[] used, boolean raw);
+
+	/**
+	 * Processes a tile, replacing its bands through
+	 * {@link TileData#setBands(float[][], double[], double[], double[], double[])}
+	 */
+	void apply(TileData tile);
+}
@@ -0,0 +1,133 @@
+/*  This file is part of geotiffovl.
+
+    geotiffovl is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 2 of the License, or
+    (at your option) any later version.
+
+    geotiffovl is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openstreetmap.josm.plugins.geotiffovl;
+
+import java.awt.geom.Point2D;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.gui.MapView;
+
+/**
+ * The part of a map view needed to paint tiles
+ * 
+ * Painting only depends on this, so it can be driven without a running JOSM
+ * user interface, e.g. by a benchmark painting into an offscreen image.
+ */
+public interface TileViewport {
+
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * @return Map units per screen pixel
+	 */
+	double getScale();
+
+	EastNorth getCenter();
+
+	/**
+	 * Converts a screen position to projected coordinates
+	 */
+	EastNorth getEastNorth(int x, int y);
+
+	/**
+	 * Converts projected coordinates to a screen position
+	 */
+	Point2D getPoint2D(EastNorth p);
+
+	/**
+	 * Viewport of JOSM's map view
+	 */
+	public static class OfMapView implements TileViewport {
+		private final MapView m_mv;
+
+		public OfMapView(MapView mv) {
+			m_mv = mv;
+		}
+
+		public int getWidth() {
+			return m_mv.getWidth();
+		}
+
+		public int getHeight() {
+			return m_mv.getHeight();
+		}
+
+		public double getScale() {
+			return m_mv.getScale();
+		}
+
+		public EastNorth getCenter() {
+			return m_mv.getCenter();
+		}
+
+		public EastNorth getEastNorth(int x, int y) {
+			return m_mv.getEastNorth(x, y);
+		}
+
+		public Point2D getPoint2D(EastNorth p) {
+			return m_mv.getPoint2D(p);
+		}
+	}
+
+	/**
+	 * Viewport given by center, scale and size, laid out like the map view:
+	 * east to the right, north up
+	 */
+	public static class Fixed implements TileViewport {
+		private final EastNorth m_center;
+		private final double m_scale;
+		private final int m_width;
+		private final int m_height;
+
+		public Fixed(EastNorth center, double scale, int width, int height) {
+			m_center = center;
+			m_scale = scale;
+			m_width = width;
+			m_height = height;
+		}
+
+		public int getWidth() {
+			return m_width;
+		}
+
+		public int getHeight() {
+			return m_height;
+		}
+
+		public double getScale() {
+			return m_scale;
+		}
+
+		public EastNorth getCenter() {
+			return m_center;
+		}
+
+		public EastNorth getEastNorth(int x, int y) {
+			return new EastNorth(m_center.east() + (x - m_width / 2.0)
+					* m_scale, m_center.north() - (y - m_height / 2.0)
+					* m_scale);
+		}
+
+		public Point2D getPoint2D(EastNorth p) {
+			return new Point2D.Double((p.east() - m_center.east()) / m_scale
+					+ m_width / 2.0, (m_center.north() - p.north()) / m_scale
+					+ m_height / 2.0);
+		}
+	}
+}